@@ -8,14 +8,11 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.support.design.widget.Snackbar;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Environment;
-import android.util.SparseArray;
 
 import android.provider.MediaStore;
 import android.support.v4.app.ActivityCompat;
@@ -23,6 +20,7 @@ import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
+import android.widget.ImageView;
 import android.widget.Toast;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -31,14 +29,29 @@ import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.face.Face;
 import com.google.android.gms.vision.face.FaceDetector;
+import com.google.android.gms.vision.face.Landmark;
 import com.google.android.gms.vision.Frame;
+import com.smona.app.detect.facedetector.detector.AdaptiveDetectorPolicy;
+import com.smona.app.detect.facedetector.detector.DetectionScheduler;
+import com.smona.app.detect.facedetector.detector.FaceResult;
+import com.smona.app.detect.facedetector.detector.LumaConverter;
 import com.smona.app.detect.facedetector.detector.SafeFaceDetector;
+import com.smona.app.detect.facedetector.index.FaceIndex;
+import com.smona.app.detect.facedetector.view.DecorationTemplate;
 import com.smona.app.detect.facedetector.view.FaceView;
+import com.smona.app.detect.facedetector.view.SourceImageView;
+import com.smona.app.detect.facedetector.view.SpriteSheet;
+import com.smona.app.detect.facedetector.util.CoordinateTransform;
+import com.smona.app.detect.facedetector.util.FaceCropExtractor;
 import com.smona.app.detect.facedetector.util.PathReader;
 import com.smona.app.detect.facedetector.util.FaceUtil;
+import com.smona.app.detect.facedetector.util.MemoryBudget;
 
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener {
 
@@ -49,8 +62,35 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     private File mPictureFile;
     private FaceDetector mDetector;
     private Detector<Face> mSafeDetector;
+    private AdaptiveDetectorPolicy mPolicy;
+    // 检测在后台线程串行执行，用户操作优先于后台任务
+    private DetectionScheduler mScheduler;
+    private DetectionScheduler.Ticket mDetectTicket;
+    // 人脸索引的读写都在mIndexExecutor线程上进行，避免在主线程做磁盘IO
+    private FaceIndex mFaceIndex;
+    private ExecutorService mIndexExecutor;
+    private LumaConverter mLumaConverter;
+    private MemoryBudget mMemoryBudget;
+    // mImage已在内存压力下缩小过
+    private boolean mImageDownsampled;
+    // 选取图片的Uri、旋转角度、版本以及原图像素到mImage的变换，内置图片时为null
+    private Uri mImageUri;
+    private int mImageDegree;
+    private long mImageVersion;
+    private CoordinateTransform mImageTransform;
+    // 当前检测结果的截取请求，点击人脸时从原图截取该人脸
+    private FaceCropExtractor.CropRequest mCropRequest;
+    private FaceCropExtractor mCropExtractor;
+    private Thread mCropConsumer;
+    // 对话框中显示的截取结果，计入内存预算
+    private Bitmap mShownCrop;
     private FaceView mFaceView;
 
+    private static final int CROP_QUEUE_CAPACITY = 4;
+
+    // 内存压力下缩小图片的下限
+    private static final int MIN_TRIMMED_DIMENSION = 128;
+
     private static final int RC_HANDLE_GMS = 9001;
     // permission request codes need to be < 256
     private static final int RC_HANDLE_CAMERA_PERM = 2;
@@ -64,7 +104,15 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
 
         mFaceView = (FaceView) findViewById(R.id.faceOverlay);
+        // 原图放在单独的底层View中，装饰重绘时不必重画原图
+        mFaceView.setSourceView((SourceImageView) findViewById(R.id.sourceImage));
         mToast = Toast.makeText(this, "", Toast.LENGTH_SHORT);
+        mPolicy = new AdaptiveDetectorPolicy(this);
+        mScheduler = new DetectionScheduler();
+        mLumaConverter = new LumaConverter();
+        initMemoryBudget();
+        openFaceIndex();
+        initFaceCrop();
 
         printGMS();
 
@@ -81,6 +129,19 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         initDecorate();
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        mMemoryBudget.onForeground();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // 页面不可见时动画已停止，输出一次帧耗时和卡顿统计
+        Log.i(TAG, "Decoration animation " + mFaceView.getAnimationStats());
+    }
+
     private void printGMS() {
         GoogleApiAvailability googAvail = GoogleApiAvailability.getInstance();
         int status = googAvail.isGooglePlayServicesAvailable(this);
@@ -98,29 +159,84 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     }
 
     private void initFaceDetector() {
-        mDetector = new FaceDetector.Builder(getApplicationContext())
-                .setTrackingEnabled(false)
-                .setLandmarkType(FaceDetector.ALL_LANDMARKS)
-                .build();
+        mDetector = mPolicy.getProfile().buildDetector(getApplicationContext());
+        Log.d(TAG, "initFaceDetector " + mPolicy.getProfile());
 
         // This is a temporary workaround for a bug in the face detector with respect to operating
         // on very small images.  This will be fixed in a future release.  But in the near term, use
         // of the SafeFaceDetector class will patch the issue.
         mSafeDetector = new SafeFaceDetector(mDetector);
+        // 旧检测器由调度线程在当前图片处理完后释放
+        mScheduler.setDetector(mSafeDetector);
+        // 新检测器首次检测包含加载模型的耗时，不计入耗时统计
+        mPolicy.onDetectorRebuilt();
+    }
 
+    private void initMemoryBudget() {
+        mMemoryBudget = new MemoryBudget(this);
+        mMemoryBudget.register(mLumaConverter);
+        mMemoryBudget.register(new MemoryBudget.Client() {
+            @Override
+            public long getRetainedBytes() {
+                return MemoryBudget.getByteCount(mImage) + mFaceView.getDecorationBytes()
+                        + MemoryBudget.getByteCount(mShownCrop);
+            }
 
+            @Override
+            public void onTrim(int stage) {
+                trimImage(stage);
+            }
+        });
+        getApplicationContext().registerComponentCallbacks(mMemoryBudget);
+    }
+
+    /**
+     * 内存不足时逐级降低当前图片的内存占用：先缩小一半，再改用RGB_565；
+     * 仍超出上限时继续缩小，直到最短边不小于MIN_TRIMMED_DIMENSION
+     */
+    private void trimImage(int stage) {
+        if (mImage == null) {
+            return;
+        }
+        Bitmap image = mImage;
+        boolean shrink = !mImageDownsampled || mMemoryBudget.isOverCeiling();
+        if (stage >= MemoryBudget.STAGE_DOWNSAMPLE && shrink
+                && Math.min(image.getWidth(), image.getHeight()) / 2 >= MIN_TRIMMED_DIMENSION) {
+            image = Bitmap.createScaledBitmap(image, Math.max(1, image.getWidth() / 2),
+                    Math.max(1, image.getHeight() / 2), true);
+            mImageDownsampled = true;
+            if (mImageTransform != null) {
+                mImageTransform.postScale((float) image.getWidth() / mImage.getWidth(),
+                        (float) image.getHeight() / mImage.getHeight());
+            }
+        }
+        if (stage >= MemoryBudget.STAGE_CHEAP_CONFIG && image.getConfig() != Bitmap.Config.RGB_565) {
+            image = image.copy(Bitmap.Config.RGB_565, false);
+        }
+        if (image != mImage) {
+            mImage = image;
+            mFaceView.setSourceBitmap(mImage);
+        }
     }
 
     private void initDecorate() {
         Bitmap header = PathReader.getImageFromAssetsFile(this, "header.png");
-        mFaceView.setHeaderBitmap(header);
         Bitmap leftFace = PathReader.getImageFromAssetsFile(this, "left_face.png");
-        mFaceView.setLeftBitmap(leftFace);
         Bitmap rightFace = PathReader.getImageFromAssetsFile(this, "right_face.png");
-        mFaceView.setRightBitmap(rightFace);
+
+        // tangli1-7为动画帧，预先合成一张精灵图
+        Bitmap[] frames = new Bitmap[7];
+        for (int i = 0; i < frames.length; ++i) {
+            frames[i] = PathReader.getImageFromAssetsFile(this, "tangli" + (i + 1) + ".png");
+        }
+        // 更换装饰模板只重新摆放装饰，不需要重新检测
+        mFaceView.setDecorationTemplate(new DecorationTemplate(header, leftFace, rightFace,
+                SpriteSheet.pack(frames), Landmark.NOSE_BASE));
 
         //mImage = PathReader.getImageFromSdcard(this, "/sdcard/source.jpg");
-        mImage =  PathReader.getImageFromAssetsFile(this, "source.jpg");
+        // 内置图片和选取的图片一样按当前检测配置的尺寸上限解码，避免全分辨率检测影响耗时统计
+        mImage = PathReader.getImageFromAssetsFile(this, "source.jpg",
+                mPolicy.getProfile().getMaxDimension(), mMemoryBudget.getPreferredConfig());
         detectorFace();
     }
 
@@ -177,43 +293,88 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         }
     }
 
+    /**
+     * 提交当前图片的检测，结果在主线程回调；新的检测会取消尚未返回的上一次检测。
+     * 选取的图片的检测结果会写入人脸索引
+     */
     private void detectorFace() {
-        if (null != mImage) {
-            //处理图片
-            if (!mDetector.isOperational()) {
-                //Handle contingency
-            } else {
-                Frame frame = new Frame.Builder().setBitmap(mImage).build();
-                SparseArray<Face> faces = mSafeDetector.detect(frame);
-                if (!mSafeDetector.isOperational()) {
-                    // Note: The first time that an app using face API is installed on a device, GMS will
-                    // download a native library to the device in order to do detection.  Usually this
-                    // completes before the app is run for the first time.  But if that download has not yet
-                    // completed, then the above call will not detect any faces.
-                    //
-                    // isOperational() can be used to check if the required native library is currently
-                    // available.  The detector will automatically become operational once the library
-                    // download completes on device.
-                    Log.w(TAG, "Face detector dependencies are not yet available.");
-
-                    // Check for low storage.  If there is low storage, the native library will not be
-                    // downloaded, so detection will not become operational.
-                    IntentFilter lowstorageFilter = new IntentFilter(Intent.ACTION_DEVICE_STORAGE_LOW);
-                    boolean hasLowStorage = registerReceiver(null, lowstorageFilter) != null;
-
-                    if (hasLowStorage) {
-                        Toast.makeText(this, R.string.low_storage_error, Toast.LENGTH_LONG).show();
-                        Log.w(TAG, getString(R.string.low_storage_error));
+        if (null == mImage) {
+            showTip("请选择图片后再检测");
+            return;
+        }
+        if (mDetectTicket != null) {
+            mDetectTicket.cancel();
+        }
+        final Bitmap image = mImage;
+        final Uri uri = mImageUri;
+        final int degree = mImageDegree;
+        final long version = mImageVersion;
+        final CoordinateTransform toImage = mImageTransform == null
+                ? null : new CoordinateTransform(mImageTransform);
+        mDetectTicket = mScheduler.submit(DetectionScheduler.PRIORITY_INTERACTIVE,
+                new DetectionScheduler.Job() {
+                    @Override
+                    public FaceResult run(Detector<Face> detector) {
+                        if (detector == null || !detector.isOperational()) {
+                            //Handle contingency
+                            return null;
+                        }
+                        // 多线程提取亮度并预留补边，避免检测库在调用线程上整图转换
+                        Frame frame = mLumaConverter.convert(image);
+                        return FaceResult.fromFaces(detector.detect(frame));
                     }
-                }
-                mFaceView.setContent(mImage, faces);
+                }, new DetectionScheduler.Callback() {
+                    @Override
+                    public void onDetected(FaceResult faces, long waitMs, long runMs) {
+                        mDetectTicket = null;
+                        if (faces != null) {
+                            mCropRequest = uri == null ? null : new FaceCropExtractor.CropRequest(
+                                    uri, faces, toImage, degree);
+                        }
+                        onFacesDetected(image, uri, version, faces, runMs);
+                    }
+                });
+    }
 
-                // Although detector may be used multiple times for different images, it should be released
-                // when it is no longer needed in order to free native resources.
+    private void onFacesDetected(Bitmap image, Uri uri, long version, FaceResult faces,
+                                 long detectMs) {
+        if (faces == null) {
+            return;
+        }
+        if (mPolicy.onDetected(detectMs)) {
+            // 检测耗时超出预算或余量充足，按新的配置重建检测器
+            initFaceDetector();
+        }
+        if (!mSafeDetector.isOperational()) {
+            // Note: The first time that an app using face API is installed on a device, GMS will
+            // download a native library to the device in order to do detection.  Usually this
+            // completes before the app is run for the first time.  But if that download has not yet
+            // completed, then the above call will not detect any faces.
+            //
+            // isOperational() can be used to check if the required native library is currently
+            // available.  The detector will automatically become operational once the library
+            // download completes on device.
+            Log.w(TAG, "Face detector dependencies are not yet available.");
+
+            // Check for low storage.  If there is low storage, the native library will not be
+            // downloaded, so detection will not become operational.
+            IntentFilter lowstorageFilter = new IntentFilter(Intent.ACTION_DEVICE_STORAGE_LOW);
+            boolean hasLowStorage = registerReceiver(null, lowstorageFilter) != null;
+
+            if (hasLowStorage) {
+                Toast.makeText(this, R.string.low_storage_error, Toast.LENGTH_LONG).show();
+                Log.w(TAG, getString(R.string.low_storage_error));
             }
-        } else {
-            showTip("请选择图片后再检测");
         }
+        // 人脸坐标基于提交检测时的图片，期间若因内存压力缩小过则再换上当前图片
+        mFaceView.setContent(image, faces);
+        if (image != mImage) {
+            mFaceView.setSourceBitmap(mImage);
+        }
+        if (uri != null) {
+            indexFaces(uri, version, image, faces);
+        }
+        mMemoryBudget.enforce();
     }
 
     @Override
@@ -222,49 +383,33 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
             return;
         }
 
-        String fileSrc = null;
+        Uri uri = null;
         if (requestCode == FaceUtil.REQUEST_PICTURE_CHOOSE) {
-            if ("file".equals(data.getData().getScheme())) {
-                // 有些低版本机型返回的Uri模式为file
-                fileSrc = data.getData().getPath();
-            } else {
-                // Uri模型为content
-                String[] proj = {MediaStore.Images.Media.DATA};
-                Cursor cursor = getContentResolver().query(data.getData(), proj,
-                        null, null, null);
-                cursor.moveToFirst();
-                int idx = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-                fileSrc = cursor.getString(idx);
-                cursor.close();
-            }
+            uri = data.getData();
         } else if (requestCode == FaceUtil.REQUEST_CAMERA_IMAGE) {
             if (null == mPictureFile) {
                 showTip("拍照失败，请重试");
                 return;
             }
 
-            fileSrc = mPictureFile.getAbsolutePath();
-            updateGallery(fileSrc);
+            uri = Uri.fromFile(mPictureFile);
+            updateGallery(mPictureFile.getAbsolutePath());
         }
 
-        if (fileSrc != null) {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            mImage = BitmapFactory.decodeFile(fileSrc, options);
-
-            // 适当压缩图片可以加快检测速度
-            options.inSampleSize = Math.max(1, (int) Math.ceil(Math.max(
-                    (double) options.outWidth / 1024f,
-                    (double) options.outHeight / 1024f)));
-            options.inJustDecodeBounds = false;
-            mImage = BitmapFactory.decodeFile(fileSrc, options);
-
-            // 部分手机会对图片做旋转，这里检测旋转角度
-            int degree = FaceUtil.readPictureDegree(fileSrc);
-            if (degree != 0) {
-                // 把图片旋转为正的方向
-                mImage = FaceUtil.rotateImage(degree, mImage);
+        if (uri != null) {
+            // 通过同一个文件描述符读取旋转角度并解码，尺寸上限由当前检测配置决定
+            PathReader.DecodedImage decoded = PathReader.getImageFromUri(this, uri,
+                    mPolicy.getProfile().getMaxDimension(), mMemoryBudget.getPreferredConfig());
+            if (decoded == null) {
+                showTip("图片读取失败，请重试");
+                return;
             }
+            mImage = decoded.getBitmap();
+            mImageDownsampled = false;
+            mImageUri = uri;
+            mImageDegree = decoded.getDegree();
+            mImageVersion = decoded.getVersion();
+            mImageTransform = decoded.getTransform();
             detectorFace();
             // ((ImageView) findViewById(R.id.offline_img)).setImageBitmap(mImage);
             // 清除上次人脸检测结果
@@ -272,6 +417,137 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     }
 
+    /**
+     * 点击人脸时在后台从原图中只解码该人脸区域，截取结果由mCropConsumer线程取出后在主线程显示
+     */
+    private void initFaceCrop() {
+        mCropExtractor = new FaceCropExtractor(this, mMemoryBudget, CROP_QUEUE_CAPACITY);
+        mMemoryBudget.register(mCropExtractor);
+        mCropConsumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final FaceCropExtractor.FaceCrop crop = mCropExtractor.take();
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                showFaceCrop(crop);
+                            }
+                        });
+                    }
+                } catch (InterruptedException e) {
+                    // 页面销毁
+                }
+            }
+        }, "FaceCropConsumer");
+        mCropConsumer.start();
+
+        mFaceView.setOnFaceClickListener(new FaceView.OnFaceClickListener() {
+            @Override
+            public void onFaceClick(int face) {
+                if (mCropRequest == null) {
+                    showTip("请选择图片后再截取人脸");
+                    return;
+                }
+                mCropExtractor.submit(mCropRequest, face);
+            }
+        });
+    }
+
+    private void showFaceCrop(FaceCropExtractor.FaceCrop crop) {
+        if (isFinishing()) {
+            return;
+        }
+        final Bitmap bitmap = crop.getBitmap();
+        mShownCrop = bitmap;
+        ImageView view = new ImageView(this);
+        view.setImageBitmap(bitmap);
+        new AlertDialog.Builder(this)
+                .setView(view)
+                .setPositiveButton(R.string.ok, null)
+                .setOnDismissListener(new DialogInterface.OnDismissListener() {
+                    @Override
+                    public void onDismiss(DialogInterface dialog) {
+                        if (mShownCrop == bitmap) {
+                            mShownCrop = null;
+                        }
+                    }
+                })
+                .show();
+        mMemoryBudget.enforce();
+    }
+
+    private void openFaceIndex() {
+        mIndexExecutor = Executors.newSingleThreadExecutor();
+        final File indexFile = new File(getFilesDir(), "faces.idx");
+        mIndexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mFaceIndex = FaceIndex.open(indexFile);
+                } catch (IOException e) {
+                    Log.w(TAG, "Face index unavailable", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 记录检测结果到人脸索引，图片未变化时不重复写入。
+     * file模式以本地路径为键，content模式以Uri为键；版本取自解码时打开的文件描述符，不查询数据库
+     */
+    private void indexFaces(final Uri uri, final long version, Bitmap image,
+                            final FaceResult faces) {
+        // 无法判断图片是否变化时不写入，避免索引过期
+        if (version < 0) {
+            return;
+        }
+        // 检测器未就绪时的空结果不能当作无人脸记录
+        if (faces == null || !mSafeDetector.isOperational()) {
+            return;
+        }
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        mIndexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFaceIndex == null) {
+                    return;
+                }
+                String key = "file".equals(uri.getScheme())
+                        ? new File(uri.getPath()).getAbsolutePath() : uri.toString();
+                if (!mFaceIndex.needsUpdate(key, version)) {
+                    return;
+                }
+                try {
+                    mFaceIndex.put(key, version, width, height, faces);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to index " + key, e);
+                }
+            }
+        });
+    }
+
+    private void closeFaceIndex() {
+        mIndexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFaceIndex == null) {
+                    return;
+                }
+                try {
+                    mFaceIndex.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close face index", e);
+                }
+                mFaceIndex = null;
+            }
+        });
+        // 已提交的写入会在关闭前完成
+        mIndexExecutor.shutdown();
+    }
+
     private void updateGallery(String filename) {
         MediaScannerConnection.scanFile(this, new String[]{filename}, null,
                 new MediaScannerConnection.OnScanCompletedListener() {
@@ -285,8 +561,17 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     @Override
     protected void onDestroy() {
-        // 销毁对象
-        mSafeDetector.release();
+        // 销毁对象，正在进行的检测不再回调
+        if (mDetectTicket != null) {
+            mDetectTicket.cancel();
+            mDetectTicket = null;
+        }
+        mScheduler.release();
+        mLumaConverter.release();
+        getApplicationContext().unregisterComponentCallbacks(mMemoryBudget);
+        mCropExtractor.release();
+        mCropConsumer.interrupt();
+        closeFaceIndex();
         super.onDestroy();
     }
 
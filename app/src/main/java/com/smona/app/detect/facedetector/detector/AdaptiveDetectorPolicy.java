@@ -0,0 +1,102 @@
+package com.smona.app.detect.facedetector.detector;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import com.smona.app.detect.facedetector.util.Debug;
+
+/**
+ * Picks a {@link DetectionProfile} from the detection latency measured on this device.<p>
+ *
+ * Latencies are collected over a small window.  When the average of a full window is above the
+ * budget the policy steps down to a cheaper profile, and when it is well below the budget it
+ * steps back up.  The chosen level is stored in shared preferences keyed by device model, so a
+ * backup restored onto another phone starts from the default instead of a foreign profile.
+ */
+public class AdaptiveDetectorPolicy {
+
+    private static final String PREFS_NAME = "detection_profile";
+    private static final String KEY_LEVEL = "level_";
+
+    public static final long DEFAULT_BUDGET_MS = 300;
+    private static final int WINDOW_SIZE = 5;
+    // Step up only with plenty of headroom, otherwise the policy oscillates between two levels.
+    private static final float UPGRADE_RATIO = 0.4f;
+
+    private final SharedPreferences mPrefs;
+    private final String mKey;
+    private final long mBudgetMs;
+
+    private final long[] mSamples = new long[WINDOW_SIZE];
+    private int mSampleCount;
+    private int mLevel;
+    private boolean mSkipNext;
+
+    public AdaptiveDetectorPolicy(Context context) {
+        this(context, DEFAULT_BUDGET_MS);
+    }
+
+    public AdaptiveDetectorPolicy(Context context, long budgetMs) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+        mKey = KEY_LEVEL + Build.MANUFACTURER + "_" + Build.MODEL;
+        mBudgetMs = budgetMs;
+        mLevel = DetectionProfile.forLevel(
+                mPrefs.getInt(mKey, DetectionProfile.DEFAULT_LEVEL)).getLevel();
+    }
+
+    public DetectionProfile getProfile() {
+        return DetectionProfile.forLevel(mLevel);
+    }
+
+    public long getBudgetMs() {
+        return mBudgetMs;
+    }
+
+    /**
+     * Called when a detector is built for the current profile.  Its first run also loads the native
+     * model, so that sample is left out of the window.
+     */
+    public void onDetectorRebuilt() {
+        mSkipNext = true;
+    }
+
+    /**
+     * Records the latency of one detection run with the current profile.
+     *
+     * @return true if the profile changed and the detector should be rebuilt
+     */
+    public boolean onDetected(long elapsedMs) {
+        if (mSkipNext) {
+            mSkipNext = false;
+            return false;
+        }
+        mSamples[mSampleCount++] = elapsedMs;
+        if (mSampleCount < WINDOW_SIZE) {
+            return false;
+        }
+
+        long total = 0;
+        for (long sample : mSamples) {
+            total += sample;
+        }
+        long average = total / WINDOW_SIZE;
+        mSampleCount = 0;
+
+        int level = mLevel;
+        if (average > mBudgetMs) {
+            level = Math.min(DetectionProfile.LEVELS.length - 1, mLevel + 1);
+        } else if (average < mBudgetMs * UPGRADE_RATIO) {
+            level = Math.max(0, mLevel - 1);
+        }
+        Debug.d("AdaptiveDetectorPolicy average=" + average + "ms, level " + mLevel + " -> " + level);
+
+        if (level == mLevel) {
+            return false;
+        }
+        mLevel = level;
+        mPrefs.edit().putInt(mKey, mLevel).apply();
+        return true;
+    }
+}
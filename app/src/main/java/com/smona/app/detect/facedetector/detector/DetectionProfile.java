@@ -0,0 +1,85 @@
+package com.smona.app.detect.facedetector.detector;
+
+import android.content.Context;
+
+import com.google.android.gms.vision.face.FaceDetector;
+
+/**
+ * A set of detection parameters picked by {@link AdaptiveDetectorPolicy}.  Profiles are ordered
+ * from the most accurate (and slowest) to the cheapest, so that the policy can step between
+ * neighbouring levels.
+ */
+public class DetectionProfile {
+
+    /**
+     * FaceView places its decorations on LEFT_CHEEK, RIGHT_CHEEK and LEFT_EYE.  The GMS detector
+     * only offers NO_LANDMARKS or ALL_LANDMARKS, so every profile has to request all of them.
+     */
+    public static final int LANDMARK_TYPE = FaceDetector.ALL_LANDMARKS;
+
+    public static final DetectionProfile[] LEVELS = {
+            new DetectionProfile(0, 1280, FaceDetector.ACCURATE_MODE, 0.08f),
+            new DetectionProfile(1, 1024, FaceDetector.FAST_MODE, 0.1f),
+            new DetectionProfile(2, 768, FaceDetector.FAST_MODE, 0.15f),
+            new DetectionProfile(3, 512, FaceDetector.FAST_MODE, 0.2f),
+    };
+
+    /**
+     * Matches the parameters the app used before profiles existed.
+     */
+    public static final int DEFAULT_LEVEL = 1;
+
+    private final int mLevel;
+    private final int mMaxDimension;
+    private final int mMode;
+    private final float mMinFaceSize;
+
+    private DetectionProfile(int level, int maxDimension, int mode, float minFaceSize) {
+        mLevel = level;
+        mMaxDimension = maxDimension;
+        mMode = mode;
+        mMinFaceSize = minFaceSize;
+    }
+
+    public static DetectionProfile forLevel(int level) {
+        return LEVELS[Math.max(0, Math.min(LEVELS.length - 1, level))];
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * The longest edge, in pixels, that a picked image is decoded to before detection.
+     */
+    public int getMaxDimension() {
+        return mMaxDimension;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public int getLandmarkType() {
+        return LANDMARK_TYPE;
+    }
+
+    public float getMinFaceSize() {
+        return mMinFaceSize;
+    }
+
+    public FaceDetector buildDetector(Context context) {
+        return new FaceDetector.Builder(context)
+                .setTrackingEnabled(false)
+                .setMode(mMode)
+                .setLandmarkType(LANDMARK_TYPE)
+                .setMinFaceSize(mMinFaceSize)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return "DetectionProfile{level=" + mLevel + ", maxDimension=" + mMaxDimension
+                + ", mode=" + mMode + ", minFaceSize=" + mMinFaceSize + "}";
+    }
+}
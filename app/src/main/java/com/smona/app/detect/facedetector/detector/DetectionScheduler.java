@@ -0,0 +1,305 @@
+package com.smona.app.detect.facedetector.detector;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.face.Face;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serializes all work on the face detector on one worker thread, with interactive work ahead of
+ * background work.<p>
+ *
+ * The native detector handles one image at a time, so a job is never interrupted; instead the
+ * worker re-checks the queues at every image boundary and always takes the oldest interactive job
+ * before any background job.  Background work such as an album scan should therefore be submitted
+ * as one job per image, which bounds the wait of a user pick to a single background image.
+ * Background jobs can be cancelled while queued.  Callbacks run on the main thread.<p>
+ *
+ * Per-class queue depth, wait times and counts are kept for monitoring.
+ */
+public class DetectionScheduler {
+    private static final String TAG = "DetectionScheduler";
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+    private static final int PRIORITY_COUNT = 2;
+
+    /**
+     * Work run on the worker thread with the current detector, which may be null if none is set.
+     * Returning a packed {@link FaceResult} keeps Face objects on the worker.
+     */
+    public interface Job {
+        FaceResult run(Detector<Face> detector);
+    }
+
+    public interface Callback {
+        /**
+         * @param faces  result of the job
+         * @param waitMs time the job spent queued
+         * @param runMs  time the job spent running
+         */
+        void onDetected(FaceResult faces, long waitMs, long runMs);
+    }
+
+    /**
+     * Handle of a submitted job.
+     */
+    public class Ticket {
+        private final int mPriority;
+        private final Job mJob;
+        private final Callback mCallback;
+        private final long mSubmitTime;
+        private volatile boolean mCancelled;
+
+        private Ticket(int priority, Job job, Callback callback) {
+            mPriority = priority;
+            mJob = job;
+            mCallback = callback;
+            mSubmitTime = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Removes the job if it is still queued, and suppresses its callback if it is running.
+         *
+         * @return true if the job had not started yet
+         */
+        public boolean cancel() {
+            synchronized (mLock) {
+                mCancelled = true;
+                if (mQueues[mPriority].remove(this)) {
+                    mCancelledCount[mPriority]++;
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Ticket>[] mQueues;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Thread mWorker;
+
+    private Detector<Face> mDetector;
+    private Detector<Face> mPendingDetector;
+    private Ticket mRunning;
+    private boolean mReleased;
+
+    private final long[] mSubmittedCount = new long[PRIORITY_COUNT];
+    private final long[] mCompletedCount = new long[PRIORITY_COUNT];
+    private final long[] mCancelledCount = new long[PRIORITY_COUNT];
+    private final long[] mTotalWaitMs = new long[PRIORITY_COUNT];
+    private final long[] mMaxWaitMs = new long[PRIORITY_COUNT];
+
+    @SuppressWarnings("unchecked")
+    public DetectionScheduler() {
+        mQueues = new ArrayDeque[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; ++i) {
+            mQueues[i] = new ArrayDeque<Ticket>();
+        }
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mWorker.start();
+    }
+
+    /**
+     * Replaces the detector at the next image boundary.  The previous detector is released on the
+     * worker thread once no job uses it.  A detector that is still pending from an earlier call is
+     * released right away, and so is the given one if the scheduler has been released.
+     */
+    public void setDetector(Detector<Face> detector) {
+        Detector<Face> discarded;
+        synchronized (mLock) {
+            if (mReleased) {
+                discarded = detector;
+            } else {
+                discarded = mPendingDetector;
+                mPendingDetector = detector;
+                mLock.notifyAll();
+            }
+        }
+        releaseDetector(discarded);
+    }
+
+    public Ticket submit(int priority, Job job, Callback callback) {
+        Ticket ticket = new Ticket(priority, job, callback);
+        synchronized (mLock) {
+            if (mReleased) {
+                throw new IllegalStateException("DetectionScheduler released");
+            }
+            mQueues[priority].addLast(ticket);
+            mSubmittedCount[priority]++;
+            mLock.notifyAll();
+        }
+        return ticket;
+    }
+
+    /**
+     * Cancels every queued job of the given class.
+     */
+    public void cancelAll(int priority) {
+        synchronized (mLock) {
+            for (Ticket ticket : mQueues[priority]) {
+                ticket.mCancelled = true;
+            }
+            mCancelledCount[priority] += mQueues[priority].size();
+            mQueues[priority].clear();
+        }
+    }
+
+    /**
+     * Drops all queued jobs, suppresses the callback of the running one, stops the worker and
+     * releases the detector.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            if (mRunning != null) {
+                mRunning.mCancelled = true;
+            }
+            for (ArrayDeque<Ticket> queue : mQueues) {
+                for (Ticket ticket : queue) {
+                    ticket.mCancelled = true;
+                }
+                queue.clear();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    public int getQueueDepth(int priority) {
+        synchronized (mLock) {
+            return mQueues[priority].size();
+        }
+    }
+
+    public long getCompletedCount(int priority) {
+        synchronized (mLock) {
+            return mCompletedCount[priority];
+        }
+    }
+
+    public long getCancelledCount(int priority) {
+        synchronized (mLock) {
+            return mCancelledCount[priority];
+        }
+    }
+
+    /**
+     * Mean time the started jobs of the class spent queued.
+     */
+    public long getMeanWaitMs(int priority) {
+        synchronized (mLock) {
+            long started = mSubmittedCount[priority] - mCancelledCount[priority]
+                    - mQueues[priority].size();
+            return started <= 0 ? 0 : mTotalWaitMs[priority] / started;
+        }
+    }
+
+    public long getMaxWaitMs(int priority) {
+        synchronized (mLock) {
+            return mMaxWaitMs[priority];
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            Ticket ticket = null;
+            Detector<Face> detector;
+            Detector<Face> replaced = null;
+            Detector<Face> retired = null;
+            boolean released;
+            long waitMs;
+            synchronized (mLock) {
+                while (!mReleased && mPendingDetector == null
+                        && (ticket = nextTicket()) == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // keep serving until released
+                    }
+                }
+                if (mPendingDetector != null) {
+                    replaced = mDetector;
+                    mDetector = mPendingDetector;
+                    mPendingDetector = null;
+                }
+                released = mReleased;
+                if (released) {
+                    retired = mDetector;
+                    mDetector = null;
+                }
+                detector = mDetector;
+                waitMs = ticket == null ? 0 : SystemClock.elapsedRealtime() - ticket.mSubmitTime;
+                if (ticket != null) {
+                    mRunning = ticket;
+                    mTotalWaitMs[ticket.mPriority] += waitMs;
+                    mMaxWaitMs[ticket.mPriority] = Math.max(mMaxWaitMs[ticket.mPriority], waitMs);
+                }
+            }
+
+            releaseDetector(replaced);
+            releaseDetector(retired);
+            if (released) {
+                return;
+            }
+            if (ticket != null) {
+                runTicket(ticket, detector, waitMs);
+            }
+        }
+    }
+
+    private static void releaseDetector(Detector<Face> detector) {
+        if (detector != null) {
+            detector.release();
+        }
+    }
+
+    private Ticket nextTicket() {
+        for (ArrayDeque<Ticket> queue : mQueues) {
+            Ticket ticket = queue.pollFirst();
+            if (ticket != null) {
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    private void runTicket(final Ticket ticket, Detector<Face> detector, final long waitMs) {
+        long start = SystemClock.elapsedRealtime();
+        FaceResult result = null;
+        try {
+            result = ticket.mJob.run(detector);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Detection job failed", e);
+        }
+        final long runMs = SystemClock.elapsedRealtime() - start;
+        synchronized (mLock) {
+            mRunning = null;
+            mCompletedCount[ticket.mPriority]++;
+        }
+
+        final FaceResult faces = result;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!ticket.mCancelled && ticket.mCallback != null) {
+                    ticket.mCallback.onDetected(faces, waitMs, runMs);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,225 @@
+package com.smona.app.detect.facedetector.detector;
+
+import android.graphics.PointF;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.Landmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Immutable detection result of one image, with all faces packed into primitive arrays instead of
+ * Face, Landmark and PointF objects.<p>
+ *
+ * Each face takes {@link #STRIDE} floats: the box, one (x, y) slot per {@link Landmark} type with
+ * NaN for landmarks that were not found, and the Euler angles.  Face ids are kept in a parallel int
+ * array.  Getters and {@link #asReadOnlyBuffer()} read the packed data in place; the data is never
+ * handed out for writing, so a result can be cached or passed between threads as it is.
+ * {@link #writeTo(ByteBuffer)} and {@link #readFrom(ByteBuffer)} store it as one bulk copy of
+ * each array.
+ */
+public class FaceResult {
+
+    public static final int LANDMARK_SLOTS = 12;
+
+    // Layout of one face in the packed float array.
+    public static final int BOX_LEFT = 0;
+    public static final int BOX_TOP = 1;
+    public static final int BOX_WIDTH = 2;
+    public static final int BOX_HEIGHT = 3;
+    public static final int LANDMARKS = 4;
+    public static final int EULER_Y = LANDMARKS + LANDMARK_SLOTS * 2;
+    public static final int EULER_Z = EULER_Y + 1;
+    public static final int STRIDE = EULER_Z + 1;
+
+    private static final int MAGIC = 0x46524553; // "FRES"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    public static final FaceResult EMPTY = new FaceResult(new float[0], new int[0], 0);
+
+    private final float[] mData;
+    private final int[] mIds;
+    private final int mCount;
+
+    /**
+     * Takes ownership of the arrays, which must not be modified afterwards.
+     */
+    FaceResult(float[] data, int[] ids, int count) {
+        mData = data;
+        mIds = ids;
+        mCount = count;
+    }
+
+    public static FaceResult fromFaces(SparseArray<Face> faces) {
+        if (faces == null || faces.size() == 0) {
+            return EMPTY;
+        }
+        return new FaceResult(pack(faces), ids(faces), faces.size());
+    }
+
+    private static int[] ids(SparseArray<Face> faces) {
+        int[] ids = new int[faces.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = faces.keyAt(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Packs the faces into the layout described by the STRIDE and offset constants.
+     */
+    private static float[] pack(SparseArray<Face> faces) {
+        float[] data = new float[faces.size() * STRIDE];
+        Arrays.fill(data, Float.NaN);
+        for (int i = 0; i < faces.size(); ++i) {
+            Face face = faces.valueAt(i);
+            int base = i * STRIDE;
+            data[base + BOX_LEFT] = face.getPosition().x;
+            data[base + BOX_TOP] = face.getPosition().y;
+            data[base + BOX_WIDTH] = face.getWidth();
+            data[base + BOX_HEIGHT] = face.getHeight();
+            data[base + EULER_Y] = face.getEulerY();
+            data[base + EULER_Z] = face.getEulerZ();
+            for (Landmark landmark : face.getLandmarks()) {
+                int type = landmark.getType();
+                if (type < 0 || type >= LANDMARK_SLOTS) {
+                    continue;
+                }
+                PointF position = landmark.getPosition();
+                data[base + LANDMARKS + type * 2] = position.x;
+                data[base + LANDMARKS + type * 2 + 1] = position.y;
+            }
+        }
+        return data;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Id the detector gave the face, i.e. its key in the SparseArray it came from.
+     */
+    public int getId(int face) {
+        return mIds[face];
+    }
+
+    public float getLeft(int face) {
+        return mData[face * STRIDE + BOX_LEFT];
+    }
+
+    public float getTop(int face) {
+        return mData[face * STRIDE + BOX_TOP];
+    }
+
+    public float getWidth(int face) {
+        return mData[face * STRIDE + BOX_WIDTH];
+    }
+
+    public float getHeight(int face) {
+        return mData[face * STRIDE + BOX_HEIGHT];
+    }
+
+    public float getEulerY(int face) {
+        return mData[face * STRIDE + EULER_Y];
+    }
+
+    public float getEulerZ(int face) {
+        return mData[face * STRIDE + EULER_Z];
+    }
+
+    public boolean hasLandmark(int face, int type) {
+        return !Float.isNaN(getLandmarkX(face, type));
+    }
+
+    public float getLandmarkX(int face, int type) {
+        return mData[face * STRIDE + LANDMARKS + type * 2];
+    }
+
+    public float getLandmarkY(int face, int type) {
+        return mData[face * STRIDE + LANDMARKS + type * 2 + 1];
+    }
+
+    /**
+     * Read-only view of the packed faces, getCount() * STRIDE floats, without copying.
+     */
+    public FloatBuffer asReadOnlyBuffer() {
+        return FloatBuffer.wrap(mData, 0, mCount * STRIDE).asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the packed faces into dest, e.g. to transform them in place.
+     */
+    public void copyTo(float[] dest, int destOffset) {
+        System.arraycopy(mData, 0, dest, destOffset, mCount * STRIDE);
+    }
+
+    public int getSerializedSize() {
+        return HEADER_SIZE + mCount * 4 + mCount * STRIDE * 4;
+    }
+
+    /**
+     * Writes the result at the buffer's position, in little-endian order whatever the order of the
+     * buffer.
+     */
+    public void writeTo(ByteBuffer out) {
+        ByteOrder order = out.order();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(STRIDE);
+        out.putInt(mCount);
+        out.asIntBuffer().put(mIds, 0, mCount);
+        out.position(out.position() + mCount * 4);
+        out.asFloatBuffer().put(mData, 0, mCount * STRIDE);
+        out.position(out.position() + mCount * STRIDE * 4);
+        out.order(order);
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer out = ByteBuffer.allocate(getSerializedSize());
+        writeTo(out);
+        return out.array();
+    }
+
+    /**
+     * Reads a result written by {@link #writeTo(ByteBuffer)} from the buffer's position.
+     *
+     * @throws IllegalArgumentException if the data is not a result in this format
+     */
+    public static FaceResult readFrom(ByteBuffer in) {
+        ByteOrder order = in.order();
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION
+                    || in.getInt() != STRIDE) {
+                throw new IllegalArgumentException("Not a face result");
+            }
+            int count = in.getInt();
+            if (count < 0 || in.remaining() < count * 4L + count * (long) STRIDE * 4) {
+                throw new IllegalArgumentException("Truncated face result of " + count + " faces");
+            }
+            if (count == 0) {
+                return EMPTY;
+            }
+            int[] ids = new int[count];
+            in.asIntBuffer().get(ids);
+            in.position(in.position() + count * 4);
+            float[] data = new float[count * STRIDE];
+            in.asFloatBuffer().get(data);
+            in.position(in.position() + data.length * 4);
+            return new FaceResult(data, ids, count);
+        } finally {
+            in.order(order);
+        }
+    }
+
+    public static FaceResult fromByteArray(byte[] bytes) {
+        return readFrom(ByteBuffer.wrap(bytes));
+    }
+}
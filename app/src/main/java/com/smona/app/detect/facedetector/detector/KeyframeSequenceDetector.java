@@ -0,0 +1,302 @@
+package com.smona.app.detect.facedetector.detector;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.Face;
+
+/**
+ * Runs the face detector only on keyframes of a frame sequence and predicts the faces of the
+ * frames in between.<p>
+ *
+ * Between two keyframes every box and landmark moves with the constant per-frame velocity measured
+ * between the last two keyframes.  Each keyframe corrects the prediction, and the measured motion
+ * and prediction error decide how far away the next keyframe is: fast movement brings keyframes
+ * closer together, a still face spreads them out.<p>
+ *
+ * For replayed sequences {@link #setMeasureError(boolean)} also runs the detector on the predicted
+ * frames and compares both, so that the accuracy lost and the detector time saved can be measured
+ * together.  Faces are matched between frames by box centre, since tracking is disabled on the
+ * detector.
+ */
+public class KeyframeSequenceDetector {
+
+    public static final int MIN_INTERVAL = 1;
+    public static final int MAX_INTERVAL = 8;
+
+    // Motion in face widths per frame.
+    private static final float HIGH_MOTION = 0.08f;
+    private static final float LOW_MOTION = 0.02f;
+    // Prediction error in face widths, measured at each keyframe.
+    private static final float MAX_PREDICTION_ERROR = 0.05f;
+
+    /**
+     * Detection of a single frame.  Lets a sequence be replayed from recorded results without the
+     * native detector.
+     */
+    interface FrameDetector {
+        FaceResult detect(Frame frame);
+    }
+
+    private final FrameDetector mDetector;
+    private boolean mMeasureError;
+
+    private float[] mKeyState;
+    private float[] mVelocity;
+    private int[] mKeyIds;
+    private int mKeyCount;
+    private int mKeyIndex;
+    private int mInterval = 2;
+
+    private int mFrameCount;
+    private int mKeyframeCount;
+    private long mDetectorTimeNanos;
+    private double mErrorSum;
+    private int mErrorSamples;
+    private float mMaxError;
+    private int mMissedFaces;
+
+    public KeyframeSequenceDetector(final Detector<Face> detector) {
+        this(new FrameDetector() {
+            @Override
+            public FaceResult detect(Frame frame) {
+                return FaceResult.fromFaces(detector.detect(frame));
+            }
+        });
+    }
+
+    KeyframeSequenceDetector(FrameDetector detector) {
+        mDetector = detector;
+    }
+
+    /**
+     * When enabled, non-keyframes are also detected to measure the prediction error.  The extra
+     * detections are not counted in {@link #getDetectorTimeMs()}.
+     */
+    public void setMeasureError(boolean measureError) {
+        mMeasureError = measureError;
+    }
+
+    /**
+     * Starts a new sequence.  Statistics are kept.
+     */
+    public void reset() {
+        mKeyState = null;
+        mVelocity = null;
+        mKeyIds = null;
+        mKeyCount = 0;
+        mInterval = 2;
+    }
+
+    public TrackedFaces process(Frame frame) {
+        int index = mFrameCount++;
+        if (mKeyState == null || index - mKeyIndex >= mInterval) {
+            return processKeyframe(frame, index);
+        }
+
+        float[] predicted = predict(index);
+        if (mMeasureError) {
+            FaceResult faces = mDetector.detect(frame);
+            compare(predicted, mKeyCount, unpack(faces), faces.getCount());
+        }
+        return new TrackedFaces(predicted, mKeyIds, mKeyCount, false);
+    }
+
+    private TrackedFaces processKeyframe(Frame frame, int index) {
+        long start = System.nanoTime();
+        FaceResult faces = mDetector.detect(frame);
+        mDetectorTimeNanos += System.nanoTime() - start;
+        mKeyframeCount++;
+
+        float[] detected = unpack(faces);
+        int count = faces.getCount();
+        float[] velocity = new float[detected.length];
+
+        if (mKeyState != null) {
+            float error = compare(predict(index), mKeyCount, detected, count);
+            int frames = index - mKeyIndex;
+            int[] match = match(mKeyState, mKeyCount, detected, count);
+            float motion = 0;
+            for (int j = 0; j < count; ++j) {
+                if (match[j] < 0) {
+                    continue;
+                }
+                int from = match[j] * FaceResult.STRIDE;
+                int to = j * FaceResult.STRIDE;
+                for (int k = 0; k < FaceResult.STRIDE; ++k) {
+                    float delta = (detected[to + k] - mKeyState[from + k]) / frames;
+                    velocity[to + k] = Float.isNaN(delta) ? 0 : delta;
+                }
+                float dx = velocity[to + FaceResult.BOX_LEFT]
+                        + velocity[to + FaceResult.BOX_WIDTH] / 2;
+                float dy = velocity[to + FaceResult.BOX_TOP]
+                        + velocity[to + FaceResult.BOX_HEIGHT] / 2;
+                motion = Math.max(motion,
+                        (float) Math.hypot(dx, dy) / detected[to + FaceResult.BOX_WIDTH]);
+            }
+            adaptInterval(motion, error);
+        }
+
+        mKeyState = detected;
+        mVelocity = velocity;
+        mKeyIds = new int[count];
+        for (int i = 0; i < count; ++i) {
+            mKeyIds[i] = faces.getId(i);
+        }
+        mKeyCount = count;
+        mKeyIndex = index;
+        return new TrackedFaces(detected, mKeyIds, count, true);
+    }
+
+    /**
+     * Copy of the packed faces that predictions can be computed from.
+     */
+    private static float[] unpack(FaceResult faces) {
+        float[] data = new float[faces.getCount() * FaceResult.STRIDE];
+        faces.copyTo(data, 0);
+        return data;
+    }
+
+    private void adaptInterval(float motion, float error) {
+        if (motion > HIGH_MOTION || error > MAX_PREDICTION_ERROR) {
+            mInterval = Math.max(MIN_INTERVAL, mInterval / 2);
+        } else if (motion < LOW_MOTION) {
+            mInterval = Math.min(MAX_INTERVAL, mInterval + 1);
+        }
+    }
+
+    private float[] predict(int index) {
+        int frames = index - mKeyIndex;
+        float[] predicted = new float[mKeyState.length];
+        for (int k = 0; k < predicted.length; ++k) {
+            predicted[k] = mKeyState[k] + mVelocity[k] * frames;
+        }
+        return predicted;
+    }
+
+    /**
+     * Records the landmark error of the predicted faces against the detected ones.
+     *
+     * @return the mean error of this frame in face widths
+     */
+    private float compare(float[] predicted, int predictedCount, float[] detected, int detectedCount) {
+        int[] match = match(predicted, predictedCount, detected, detectedCount);
+        double sum = 0;
+        int samples = 0;
+        for (int j = 0; j < detectedCount; ++j) {
+            if (match[j] < 0) {
+                mMissedFaces++;
+                continue;
+            }
+            int p = match[j] * FaceResult.STRIDE;
+            int d = j * FaceResult.STRIDE;
+            float width = detected[d + FaceResult.BOX_WIDTH];
+            for (int type = 0; type < FaceResult.LANDMARK_SLOTS; ++type) {
+                int offset = FaceResult.LANDMARKS + type * 2;
+                float dx = predicted[p + offset] - detected[d + offset];
+                float dy = predicted[p + offset + 1] - detected[d + offset + 1];
+                if (Float.isNaN(dx) || Float.isNaN(dy)) {
+                    continue;
+                }
+                float error = (float) Math.hypot(dx, dy) / width;
+                mMaxError = Math.max(mMaxError, error);
+                sum += error;
+                samples++;
+            }
+        }
+        mErrorSum += sum;
+        mErrorSamples += samples;
+        return samples == 0 ? 0 : (float) (sum / samples);
+    }
+
+    /**
+     * For every face in to, finds the nearest unmatched face in from whose centre lies within a
+     * face width, or -1.
+     */
+    private static int[] match(float[] from, int fromCount, float[] to, int toCount) {
+        int[] match = new int[toCount];
+        boolean[] used = new boolean[fromCount];
+        for (int j = 0; j < toCount; ++j) {
+            match[j] = -1;
+            float width = to[j * FaceResult.STRIDE + FaceResult.BOX_WIDTH];
+            float best = width * width;
+            for (int i = 0; i < fromCount; ++i) {
+                if (used[i]) {
+                    continue;
+                }
+                float dx = centerX(from, i) - centerX(to, j);
+                float dy = centerY(from, i) - centerY(to, j);
+                float distance = dx * dx + dy * dy;
+                if (distance < best) {
+                    best = distance;
+                    match[j] = i;
+                }
+            }
+            if (match[j] >= 0) {
+                used[match[j]] = true;
+            }
+        }
+        return match;
+    }
+
+    private static float centerX(float[] data, int face) {
+        int base = face * FaceResult.STRIDE;
+        return data[base + FaceResult.BOX_LEFT] + data[base + FaceResult.BOX_WIDTH] / 2;
+    }
+
+    private static float centerY(float[] data, int face) {
+        int base = face * FaceResult.STRIDE;
+        return data[base + FaceResult.BOX_TOP] + data[base + FaceResult.BOX_HEIGHT] / 2;
+    }
+
+    public int getInterval() {
+        return mInterval;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getKeyframeCount() {
+        return mKeyframeCount;
+    }
+
+    /**
+     * Time spent in the detector on keyframes.
+     */
+    public long getDetectorTimeMs() {
+        return mDetectorTimeNanos / 1000000;
+    }
+
+    /**
+     * Share of frames that did not need the detector.
+     */
+    public float getSavedFraction() {
+        return mFrameCount == 0 ? 0 : 1f - (float) mKeyframeCount / mFrameCount;
+    }
+
+    /**
+     * Mean landmark error of predictions, in face widths.
+     */
+    public float getMeanError() {
+        return mErrorSamples == 0 ? 0 : (float) (mErrorSum / mErrorSamples);
+    }
+
+    public float getMaxError() {
+        return mMaxError;
+    }
+
+    /**
+     * Detected faces that had no predicted counterpart.
+     */
+    public int getMissedFaces() {
+        return mMissedFaces;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyframeSequenceDetector{frames=" + mFrameCount + ", keyframes=" + mKeyframeCount
+                + ", detectorTimeMs=" + mDetectorTimeNanos / 1000000f + ", saved=" + getSavedFraction()
+                + ", meanError=" + getMeanError() + ", maxError=" + mMaxError
+                + ", missedFaces=" + mMissedFaces + "}";
+    }
+}
@@ -0,0 +1,164 @@
+package com.smona.app.detect.facedetector.detector;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.util.Log;
+
+import com.google.android.gms.vision.Frame;
+import com.smona.app.detect.facedetector.util.FaceUtil;
+import com.smona.app.detect.facedetector.util.MemoryBudget;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds grayscale detector frames from ARGB bitmaps.<p>
+ *
+ * The bitmap is split into row bands that are converted to luma in parallel, one band per core,
+ * straight into a pooled direct buffer.  The buffer is already sized with the padding that
+ * {@link SafeFaceDetector} would add, so the padded frame is produced in the same pass and
+ * SafeFaceDetector passes it through untouched.<p>
+ *
+ * The returned frame shares the pooled buffer and is only valid until the next call to
+ * {@link #convert(Bitmap)}.  The pooled buffer is a cache and is dropped when the
+ * {@link MemoryBudget} evicts caches.
+ */
+public class LumaConverter implements MemoryBudget.Client {
+    private static final String TAG = "LumaConverter";
+
+    // Below this many rows per band the task overhead outweighs the parallelism.
+    private static final int MIN_BAND_ROWS = 64;
+
+    private final ExecutorService mExecutor;
+    private final int mParallelism;
+    // Written by onTrim() on the main thread while a conversion may be running elsewhere.
+    private volatile ByteBuffer mBuffer;
+
+    public LumaConverter() {
+        mParallelism = Math.max(1, FaceUtil.getNumCores());
+        mExecutor = Executors.newFixedThreadPool(mParallelism);
+    }
+
+    public Frame convert(final Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int paddedWidth = SafeFaceDetector.getPaddedWidth(width, height);
+        final int paddedHeight = SafeFaceDetector.getPaddedHeight(width, height);
+        if (paddedWidth != width || paddedHeight != height) {
+            Log.i(TAG, "Padded image from: " + width + "x" + height + " to " + paddedWidth + "x"
+                    + paddedHeight);
+        }
+
+        final ByteBuffer buffer = obtainBuffer(paddedWidth * paddedHeight);
+        int bands = Math.max(1, Math.min(mParallelism, height / MIN_BAND_ROWS));
+        int rowsPerBand = (height + bands - 1) / bands;
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(bands);
+        for (int top = 0; top < height; top += rowsPerBand) {
+            final int bandTop = top;
+            final int bandBottom = Math.min(height, top + rowsPerBand);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    convertBand(bitmap, buffer, paddedWidth, bandTop, bandBottom);
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+
+        // The rows below the image are padding, left black like SafeFaceDetector does.
+        if (paddedHeight > height) {
+            byte[] row = new byte[paddedWidth];
+            for (int y = height; y < paddedHeight; ++y) {
+                buffer.position(y * paddedWidth);
+                buffer.put(row);
+            }
+        }
+        buffer.rewind();
+
+        return new Frame.Builder()
+                .setImageData(buffer, paddedWidth, paddedHeight, ImageFormat.NV21)
+                .build();
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        ByteBuffer buffer = mBuffer;
+        return buffer == null ? 0 : buffer.capacity();
+    }
+
+    @Override
+    public void onTrim(int stage) {
+        if (stage >= MemoryBudget.STAGE_EVICT_CACHES) {
+            mBuffer = null;
+        }
+    }
+
+    public void release() {
+        mExecutor.shutdownNow();
+        mBuffer = null;
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        ByteBuffer buffer = mBuffer;
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            mBuffer = buffer;
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private void runAll(List<Callable<Void>> tasks) {
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return;
+        }
+        try {
+            for (Future<Void> future : mExecutor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Converts rows [top, bottom) to luma.  Each band writes through its own view of the buffer, so
+     * bands never share a position.
+     */
+    private static void convertBand(Bitmap bitmap, ByteBuffer buffer, int stride, int top,
+                                    int bottom) {
+        int width = bitmap.getWidth();
+        int[] pixels = new int[width];
+        byte[] luma = new byte[stride];
+        ByteBuffer band = buffer.duplicate();
+        for (int y = top; y < bottom; ++y) {
+            bitmap.getPixels(pixels, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; ++x) {
+                int argb = pixels[x];
+                int r = (argb >> 16) & 0xff;
+                int g = (argb >> 8) & 0xff;
+                int b = argb & 0xff;
+                luma[x] = (byte) ((77 * r + 150 * g + 29 * b) >> 8);
+            }
+            band.position(y * stride);
+            band.put(luma);
+        }
+    }
+}
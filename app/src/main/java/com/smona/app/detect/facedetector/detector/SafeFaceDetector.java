@@ -43,6 +43,8 @@ import java.util.Arrays;
  */
 public class SafeFaceDetector extends Detector<Face> {
     private static final String TAG = "SafeFaceDetector";
+    private static final int K_MIN_DIMENSION = 147;
+    private static final int K_DIMENSION_LOWER = 640;
     private Detector<Face> mDelegate;
 
     /**
@@ -64,36 +66,56 @@ public class SafeFaceDetector extends Detector<Face> {
      */
     @Override
     public SparseArray<Face> detect(Frame frame) {
-        final int kMinDimension = 147;
-        final int kDimensionLower = 640;
         int width = frame.getMetadata().getWidth();
         int height = frame.getMetadata().getHeight();
 
-        if (height > (2 * kDimensionLower)) {
+        int paddedWidth = getPaddedWidth(width, height);
+        int paddedHeight = getPaddedHeight(width, height);
+        if (paddedWidth != width) {
+            frame = padFrameRight(frame, paddedWidth);
+        } else if (paddedHeight != height) {
+            frame = padFrameBottom(frame, paddedHeight);
+        }
+
+        return mDelegate.detect(frame);
+    }
+
+    /**
+     * Returns the width an image of the given size has to be padded to on the right, or the width
+     * itself if no padding is needed.
+     */
+    public static int getPaddedWidth(int width, int height) {
+        if (height > (2 * K_DIMENSION_LOWER)) {
             // The image will be scaled down before detection is run.  Check to make sure that this
             // won't result in the width going below the minimum
-            double multiple = (double) height / (double) kDimensionLower;
+            double multiple = (double) height / (double) K_DIMENSION_LOWER;
             double lowerWidth = Math.floor((double) width / multiple);
-            if (lowerWidth < kMinDimension) {
+            if (lowerWidth < K_MIN_DIMENSION) {
                 // The width would have gone below the minimum when downsampling, so apply padding
                 // to the right to keep the width large enough.
-                int newWidth = (int) Math.ceil(kMinDimension * multiple);
-                frame = padFrameRight(frame, newWidth);
+                return (int) Math.ceil(K_MIN_DIMENSION * multiple);
             }
-        } else if (width > (2 * kDimensionLower)) {
+        } else if (width <= (2 * K_DIMENSION_LOWER) && width < K_MIN_DIMENSION) {
+            return K_MIN_DIMENSION;
+        }
+        return width;
+    }
+
+    /**
+     * Returns the height an image of the given size has to be padded to at the bottom, or the
+     * height itself if no padding is needed.
+     */
+    public static int getPaddedHeight(int width, int height) {
+        if (height <= (2 * K_DIMENSION_LOWER) && width > (2 * K_DIMENSION_LOWER)) {
             // The image will be scaled down before detection is run.  Check to make sure that this
             // won't result in the height going below the minimum
-            double multiple = (double) width / (double) kDimensionLower;
+            double multiple = (double) width / (double) K_DIMENSION_LOWER;
             double lowerHeight = Math.floor((double) height / multiple);
-            if (lowerHeight < kMinDimension) {
-                int newHeight = (int) Math.ceil(kMinDimension * multiple);
-                frame = padFrameBottom(frame, newHeight);
+            if (lowerHeight < K_MIN_DIMENSION) {
+                return (int) Math.ceil(K_MIN_DIMENSION * multiple);
             }
-        } else if (width < kMinDimension) {
-            frame = padFrameRight(frame, kMinDimension);
         }
-
-        return mDelegate.detect(frame);
+        return height;
     }
 
     @Override
@@ -0,0 +1,23 @@
+package com.smona.app.detect.facedetector.detector;
+
+/**
+ * Faces of one frame of a sequence, either detected on a keyframe or predicted in between.  The
+ * faces use the packed {@link FaceResult} layout, so predicted frames can be drawn and stored like
+ * any other result.
+ */
+public class TrackedFaces extends FaceResult {
+
+    private final boolean mKeyframe;
+
+    TrackedFaces(float[] data, int[] ids, int count, boolean keyframe) {
+        super(data, ids, count);
+        mKeyframe = keyframe;
+    }
+
+    /**
+     * Returns true if the faces come from the detector rather than from the motion model.
+     */
+    public boolean isKeyframe() {
+        return mKeyframe;
+    }
+}
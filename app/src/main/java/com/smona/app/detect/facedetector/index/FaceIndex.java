@@ -0,0 +1,486 @@
+package com.smona.app.detect.facedetector.index;
+
+import android.util.LongSparseArray;
+
+import com.smona.app.detect.facedetector.detector.FaceResult;
+import com.smona.app.detect.facedetector.util.Debug;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only binary index of face detection results for a photo library.<p>
+ *
+ * Every detected face is stored as one fixed-width record holding the image identity, the face
+ * box, the Euler angles and one slot per landmark type.  An image is identified by a key, its
+ * absolute path for files or its uri for content provider images, and carries a version that
+ * changes when the image does, e.g. the file's last modification time.  An image without faces
+ * gets a single record with a face count of zero, so that it is not scanned again.  When an image
+ * changes its old records are flagged as superseded and the new ones are appended.<p>
+ *
+ * Queries run over a read-only memory mapping of the file through a reused {@link Record}, so a
+ * scan does not allocate per record.  Writes do not touch the mapping: what they need about the
+ * live images is kept in memory, and appended records only mark the mapping stale, so the file is
+ * mapped again once before the next query rather than after every put.  Old mappings are only
+ * unmapped when collected, so remapping per put would pile them up during a library scan.<p>
+ *
+ * Image keys are kept in a small side file, because records only carry a hash of the key.  All
+ * methods do disk I/O and should be called off the main thread.
+ */
+public class FaceIndex implements Closeable {
+    private static final int MAGIC = 0x46494458; // "FIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    public static final int LANDMARK_SLOTS = FaceResult.LANDMARK_SLOTS;
+
+    private static final int OFFSET_PATH_HASH = 0;
+    private static final int OFFSET_LAST_MODIFIED = 8;
+    private static final int OFFSET_IMAGE_WIDTH = 16;
+    private static final int OFFSET_IMAGE_HEIGHT = 20;
+    private static final int OFFSET_FACE_COUNT = 24;
+    private static final int OFFSET_FACE_ORDINAL = 28;
+    private static final int OFFSET_FLAGS = 32;
+    private static final int OFFSET_LEFT = 36;
+    private static final int OFFSET_TOP = 40;
+    private static final int OFFSET_WIDTH = 44;
+    private static final int OFFSET_HEIGHT = 48;
+    private static final int OFFSET_EULER_Y = 52;
+    private static final int OFFSET_EULER_Z = 56;
+    private static final int OFFSET_LANDMARKS = 60;
+    // Padded so that the longs of every record stay 8-byte aligned.
+    static final int RECORD_SIZE = 160;
+
+    private static final int FLAG_SUPERSEDED = 1;
+
+    private final File mFile;
+    private final File mPathFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final DataOutputStream mPathOut;
+
+    // key hash -> live records of that image
+    private final LongSparseArray<LiveImage> mLiveImages = new LongSparseArray<LiveImage>();
+    private final LongSparseArray<String> mPaths = new LongSparseArray<String>();
+
+    private MappedByteBuffer mMapped;
+    // Set when records were appended after the file was last mapped.
+    private boolean mMappingStale;
+    private int mRecordCount;
+    private final Record mRecord = new Record();
+
+    private static class LiveImage {
+        final int first;
+        final int count;
+        final long version;
+
+        LiveImage(int first, int count, long version) {
+            this.first = first;
+            this.count = count;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Visits the live records of a scan.  The record is reused and only valid during the call.
+     */
+    public interface Visitor {
+        /**
+         * @return false to stop the scan
+         */
+        boolean onRecord(Record record);
+    }
+
+    /**
+     * Opens the index at the given file, creating it if necessary.
+     */
+    public static FaceIndex open(File file) throws IOException {
+        return new FaceIndex(file);
+    }
+
+    private FaceIndex(File file) throws IOException {
+        mFile = file;
+        mPathFile = new File(file.getPath() + ".paths");
+        mRaf = new RandomAccessFile(file, "rw");
+        mChannel = mRaf.getChannel();
+
+        if (mChannel.size() < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+            header.flip();
+            mChannel.truncate(0);
+            mChannel.write(header, 0);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            mChannel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                    || header.getInt(8) != RECORD_SIZE) {
+                mRaf.close();
+                throw new IOException("Not a face index: " + file);
+            }
+        }
+        // A record cut short by a crash during append is dropped.
+        mRecordCount = (int) ((mChannel.size() - HEADER_SIZE) / RECORD_SIZE);
+        mChannel.truncate(HEADER_SIZE + (long) mRecordCount * RECORD_SIZE);
+
+        remap();
+        loadLiveImages();
+        loadPaths();
+        mPathOut = new DataOutputStream(new FileOutputStream(mPathFile, true));
+    }
+
+    private void remap() throws IOException {
+        long size = (long) mRecordCount * RECORD_SIZE;
+        mMapped = mChannel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size);
+        mMapped.order(ByteOrder.LITTLE_ENDIAN);
+        mMappingStale = false;
+    }
+
+    /**
+     * Maps the file again if records were appended since it was last mapped.
+     */
+    private void ensureMapped() throws IOException {
+        if (mMappingStale) {
+            remap();
+        }
+    }
+
+    private void loadLiveImages() {
+        for (int i = 0; i < mRecordCount; ++i) {
+            int base = i * RECORD_SIZE;
+            if ((mMapped.getInt(base + OFFSET_FLAGS) & FLAG_SUPERSEDED) == 0
+                    && mMapped.getInt(base + OFFSET_FACE_ORDINAL) == 0) {
+                mLiveImages.put(mMapped.getLong(base + OFFSET_PATH_HASH), new LiveImage(i,
+                        Math.max(1, mMapped.getInt(base + OFFSET_FACE_COUNT)),
+                        mMapped.getLong(base + OFFSET_LAST_MODIFIED)));
+            }
+        }
+    }
+
+    private void loadPaths() throws IOException {
+        if (!mPathFile.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mPathFile)));
+        try {
+            while (true) {
+                long hash = in.readLong();
+                mPaths.put(hash, in.readUTF());
+            }
+        } catch (EOFException e) {
+            // end of the path table
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Hash identifying an image in the index (64-bit FNV-1a over the key).
+     */
+    public static long keyHash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public static long pathHash(File image) {
+        return keyHash(image.getAbsolutePath());
+    }
+
+    /**
+     * Returns the key, a path or a uri, of the image with the given hash.
+     */
+    public synchronized String getPath(long pathHash) {
+        return mPaths.get(pathHash);
+    }
+
+    public synchronized int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Returns true if the image is missing from the index or changed since it was indexed.
+     */
+    public boolean needsUpdate(File image) {
+        return needsUpdate(image.getAbsolutePath(), image.lastModified());
+    }
+
+    /**
+     * Returns true if the image is missing from the index or was indexed at another version.
+     */
+    public synchronized boolean needsUpdate(String key, long version) {
+        LiveImage live = mLiveImages.get(keyHash(key));
+        return live == null || live.version != version;
+    }
+
+    /**
+     * Stores the detection result of an image, replacing any earlier result for the same path.
+     * Coordinates are those of the bitmap the faces were detected on, whose size is given.
+     */
+    public void put(File image, int imageWidth, int imageHeight, FaceResult faces)
+            throws IOException {
+        put(image.getAbsolutePath(), image.lastModified(), imageWidth, imageHeight, faces);
+    }
+
+    /**
+     * Stores the detection result of the image with the given key at the given version, replacing
+     * any earlier result for the same key.
+     */
+    public synchronized void put(String key, long version, int imageWidth, int imageHeight,
+                                 FaceResult faces) throws IOException {
+        long hash = keyHash(key);
+        supersede(hash);
+
+        int faceCount = faces == null ? 0 : faces.getCount();
+        int records = Math.max(1, faceCount);
+        ByteBuffer buffer = ByteBuffer.allocate(records * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < records; ++i) {
+            int base = i * RECORD_SIZE;
+            buffer.putLong(base + OFFSET_PATH_HASH, hash);
+            buffer.putLong(base + OFFSET_LAST_MODIFIED, version);
+            buffer.putInt(base + OFFSET_IMAGE_WIDTH, imageWidth);
+            buffer.putInt(base + OFFSET_IMAGE_HEIGHT, imageHeight);
+            buffer.putInt(base + OFFSET_FACE_COUNT, faceCount);
+            buffer.putInt(base + OFFSET_FACE_ORDINAL, i);
+            buffer.putInt(base + OFFSET_FLAGS, 0);
+            for (int slot = 0; slot < LANDMARK_SLOTS * 2; ++slot) {
+                buffer.putFloat(base + OFFSET_LANDMARKS + slot * 4, Float.NaN);
+            }
+            if (faceCount == 0) {
+                buffer.putFloat(base + OFFSET_LEFT, Float.NaN);
+                buffer.putFloat(base + OFFSET_TOP, Float.NaN);
+                buffer.putFloat(base + OFFSET_WIDTH, 0);
+                buffer.putFloat(base + OFFSET_HEIGHT, 0);
+                continue;
+            }
+            buffer.putFloat(base + OFFSET_LEFT, faces.getLeft(i));
+            buffer.putFloat(base + OFFSET_TOP, faces.getTop(i));
+            buffer.putFloat(base + OFFSET_WIDTH, faces.getWidth(i));
+            buffer.putFloat(base + OFFSET_HEIGHT, faces.getHeight(i));
+            buffer.putFloat(base + OFFSET_EULER_Y, faces.getEulerY(i));
+            buffer.putFloat(base + OFFSET_EULER_Z, faces.getEulerZ(i));
+            for (int type = 0; type < LANDMARK_SLOTS; ++type) {
+                buffer.putFloat(base + OFFSET_LANDMARKS + type * 8, faces.getLandmarkX(i, type));
+                buffer.putFloat(base + OFFSET_LANDMARKS + type * 8 + 4,
+                        faces.getLandmarkY(i, type));
+            }
+        }
+
+        long position = HEADER_SIZE + (long) mRecordCount * RECORD_SIZE;
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+        mLiveImages.put(hash, new LiveImage(mRecordCount, records, version));
+        mRecordCount += records;
+        mMappingStale = true;
+
+        if (mPaths.get(hash) == null) {
+            mPaths.put(hash, key);
+            mPathOut.writeLong(hash);
+            mPathOut.writeUTF(key);
+            mPathOut.flush();
+        }
+    }
+
+    /**
+     * Drops the result of an image that no longer exists.
+     */
+    public void remove(File image) throws IOException {
+        remove(image.getAbsolutePath());
+    }
+
+    public synchronized void remove(String key) throws IOException {
+        supersede(keyHash(key));
+    }
+
+    private void supersede(long hash) throws IOException {
+        LiveImage live = mLiveImages.get(hash);
+        if (live == null) {
+            return;
+        }
+        ByteBuffer flag = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = live.first; i < live.first + live.count; ++i) {
+            flag.clear();
+            flag.putInt(0, FLAG_SUPERSEDED);
+            mChannel.write(flag, HEADER_SIZE + (long) i * RECORD_SIZE + OFFSET_FLAGS);
+        }
+        mLiveImages.remove(hash);
+    }
+
+    /**
+     * Visits every live record in file order.
+     */
+    public synchronized void scan(Visitor visitor) throws IOException {
+        ensureMapped();
+        for (int i = 0; i < mRecordCount; ++i) {
+            int base = i * RECORD_SIZE;
+            if ((mMapped.getInt(base + OFFSET_FLAGS) & FLAG_SUPERSEDED) != 0) {
+                continue;
+            }
+            mRecord.mBase = base;
+            if (!visitor.onRecord(mRecord)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Collects the path hashes of images with at least the given number of faces.
+     *
+     * @return the number of hashes written to out, at most out.length
+     */
+    public synchronized int findImagesWithFaces(int minFaces, long[] out) throws IOException {
+        ensureMapped();
+        int count = 0;
+        for (int i = 0; i < mRecordCount && count < out.length; ++i) {
+            int base = i * RECORD_SIZE;
+            if ((mMapped.getInt(base + OFFSET_FLAGS) & FLAG_SUPERSEDED) == 0
+                    && mMapped.getInt(base + OFFSET_FACE_ORDINAL) == 0
+                    && mMapped.getInt(base + OFFSET_FACE_COUNT) >= minFaces) {
+                out[count++] = mMapped.getLong(base + OFFSET_PATH_HASH);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Collects the path hashes of images containing a face at least the given fraction of the
+     * image width.  Each image is reported once.
+     *
+     * @return the number of hashes written to out, at most out.length
+     */
+    public synchronized int findImagesWithFaceLargerThan(float widthFraction, long[] out)
+            throws IOException {
+        ensureMapped();
+        int count = 0;
+        long lastHash = 0;
+        boolean reported = false;
+        for (int i = 0; i < mRecordCount && count < out.length; ++i) {
+            int base = i * RECORD_SIZE;
+            if ((mMapped.getInt(base + OFFSET_FLAGS) & FLAG_SUPERSEDED) != 0) {
+                continue;
+            }
+            long hash = mMapped.getLong(base + OFFSET_PATH_HASH);
+            if (mMapped.getInt(base + OFFSET_FACE_ORDINAL) == 0 || hash != lastHash) {
+                lastHash = hash;
+                reported = false;
+            }
+            if (reported) {
+                continue;
+            }
+            float width = mMapped.getFloat(base + OFFSET_WIDTH);
+            int imageWidth = mMapped.getInt(base + OFFSET_IMAGE_WIDTH);
+            if (imageWidth > 0 && width / imageWidth >= widthFraction) {
+                out[count++] = hash;
+                reported = true;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            mPathOut.close();
+        } finally {
+            mRaf.close();
+        }
+        Debug.d("FaceIndex closed " + mFile + " with " + mRecordCount + " records");
+    }
+
+    /**
+     * Flyweight view of one record in the mapped file.
+     */
+    public class Record {
+        private int mBase;
+
+        private Record() {
+        }
+
+        public long getPathHash() {
+            return mMapped.getLong(mBase + OFFSET_PATH_HASH);
+        }
+
+        /**
+         * Version the image was indexed at, for files their last modification time.
+         */
+        public long getLastModified() {
+            return mMapped.getLong(mBase + OFFSET_LAST_MODIFIED);
+        }
+
+        public int getImageWidth() {
+            return mMapped.getInt(mBase + OFFSET_IMAGE_WIDTH);
+        }
+
+        public int getImageHeight() {
+            return mMapped.getInt(mBase + OFFSET_IMAGE_HEIGHT);
+        }
+
+        /**
+         * Number of faces in the image; zero for the placeholder record of an image without faces.
+         */
+        public int getFaceCount() {
+            return mMapped.getInt(mBase + OFFSET_FACE_COUNT);
+        }
+
+        public int getFaceOrdinal() {
+            return mMapped.getInt(mBase + OFFSET_FACE_ORDINAL);
+        }
+
+        public float getLeft() {
+            return mMapped.getFloat(mBase + OFFSET_LEFT);
+        }
+
+        public float getTop() {
+            return mMapped.getFloat(mBase + OFFSET_TOP);
+        }
+
+        public float getWidth() {
+            return mMapped.getFloat(mBase + OFFSET_WIDTH);
+        }
+
+        public float getHeight() {
+            return mMapped.getFloat(mBase + OFFSET_HEIGHT);
+        }
+
+        public float getEulerY() {
+            return mMapped.getFloat(mBase + OFFSET_EULER_Y);
+        }
+
+        public float getEulerZ() {
+            return mMapped.getFloat(mBase + OFFSET_EULER_Z);
+        }
+
+        public boolean hasLandmark(int type) {
+            return !Float.isNaN(getLandmarkX(type));
+        }
+
+        /**
+         * @param type one of the {@link com.google.android.gms.vision.face.Landmark} types
+         */
+        public float getLandmarkX(int type) {
+            return mMapped.getFloat(mBase + OFFSET_LANDMARKS + type * 8);
+        }
+
+        public float getLandmarkY(int type) {
+            return mMapped.getFloat(mBase + OFFSET_LANDMARKS + type * 8 + 4);
+        }
+    }
+}
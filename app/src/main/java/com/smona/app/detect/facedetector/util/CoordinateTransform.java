@@ -0,0 +1,191 @@
+package com.smona.app.detect.facedetector.util;
+
+/**
+ * One affine transform for the whole chain of coordinate spaces a face goes through: the stored
+ * image, the downsampled decode, the EXIF rotation, SafeFaceDetector's padding and the view scale.
+ * The steps are composed into a single matrix once, and then all boxes and landmarks of a result
+ * are mapped in one pass over primitive float arrays, without Point or Rect objects.<p>
+ *
+ * Steps are appended with the post* methods, in the order the coordinates go through them.
+ * {@link #invert()} gives the reverse chain, e.g. to hit-test view coordinates against faces.
+ * The matrix is kept in plain fields rather than an android.graphics.Matrix, so the class also
+ * runs in JVM unit tests.  Instances are mutable and not thread safe.
+ */
+public class CoordinateTransform {
+
+    // x' = mScaleX * x + mSkewX * y + mTransX, y' = mSkewY * x + mScaleY * y + mTransY
+    private float mScaleX = 1;
+    private float mSkewX;
+    private float mTransX;
+    private float mSkewY;
+    private float mScaleY = 1;
+    private float mTransY;
+
+    public CoordinateTransform() {
+    }
+
+    public CoordinateTransform(CoordinateTransform other) {
+        mScaleX = other.mScaleX;
+        mSkewX = other.mSkewX;
+        mTransX = other.mTransX;
+        mSkewY = other.mSkewY;
+        mScaleY = other.mScaleY;
+        mTransY = other.mTransY;
+    }
+
+    /**
+     * Transform from the pixels stored in an image file to the bitmap decoded from it at
+     * decodedWidth x decodedHeight and then rotated upright by the EXIF degree.  The decoded size
+     * is taken before rotation; it is passed rather than the sample size because decoders may
+     * round the sample size down.
+     */
+    public static CoordinateTransform forDecodedImage(int rawWidth, int rawHeight,
+                                                      int decodedWidth, int decodedHeight,
+                                                      int degree) {
+        CoordinateTransform transform = new CoordinateTransform();
+        transform.postScale((float) decodedWidth / rawWidth, (float) decodedHeight / rawHeight);
+        transform.postRotateImage(degree, decodedWidth, decodedHeight);
+        return transform;
+    }
+
+    public CoordinateTransform reset() {
+        mScaleX = 1;
+        mSkewX = 0;
+        mTransX = 0;
+        mSkewY = 0;
+        mScaleY = 1;
+        mTransY = 0;
+        return this;
+    }
+
+    public CoordinateTransform postScale(float sx, float sy) {
+        return postConcat(sx, 0, 0, 0, sy, 0);
+    }
+
+    public CoordinateTransform postTranslate(float dx, float dy) {
+        mTransX += dx;
+        mTransY += dy;
+        return this;
+    }
+
+    /**
+     * Rotates an image of the given size clockwise, keeping the result in positive coordinates.
+     * Unlike FaceUtil.RotateDeg90() any multiple of 90 degrees is supported.
+     */
+    public CoordinateTransform postRotateImage(int degree, float width, float height) {
+        // With y pointing down, (x, y) turned clockwise by 90 degrees is (-y, x).
+        switch (((degree % 360) + 360) % 360) {
+            case 90:
+                return postConcat(0, -1, height, 1, 0, 0);
+            case 180:
+                return postConcat(-1, 0, width, 0, -1, height);
+            case 270:
+                return postConcat(0, 1, 0, -1, 0, width);
+            default:
+                return this;
+        }
+    }
+
+    public CoordinateTransform postConcat(CoordinateTransform next) {
+        return postConcat(next.mScaleX, next.mSkewX, next.mTransX,
+                next.mSkewY, next.mScaleY, next.mTransY);
+    }
+
+    /**
+     * Appends the given step, i.e. replaces this matrix M with step * M.
+     */
+    private CoordinateTransform postConcat(float scaleX, float skewX, float transX,
+                                           float skewY, float scaleY, float transY) {
+        float newScaleX = scaleX * mScaleX + skewX * mSkewY;
+        float newSkewX = scaleX * mSkewX + skewX * mScaleY;
+        float newTransX = scaleX * mTransX + skewX * mTransY + transX;
+        float newSkewY = skewY * mScaleX + scaleY * mSkewY;
+        float newScaleY = skewY * mSkewX + scaleY * mScaleY;
+        float newTransY = skewY * mTransX + scaleY * mTransY + transY;
+        mScaleX = newScaleX;
+        mSkewX = newSkewX;
+        mTransX = newTransX;
+        mSkewY = newSkewY;
+        mScaleY = newScaleY;
+        mTransY = newTransY;
+        return this;
+    }
+
+    /**
+     * Returns the reverse transform, or null if it is not invertible.
+     */
+    public CoordinateTransform invert() {
+        double det = (double) mScaleX * mScaleY - (double) mSkewX * mSkewY;
+        if (det == 0 || Double.isNaN(det) || Double.isInfinite(det)) {
+            return null;
+        }
+        CoordinateTransform inverse = new CoordinateTransform();
+        inverse.mScaleX = (float) (mScaleY / det);
+        inverse.mSkewX = (float) (-mSkewX / det);
+        inverse.mTransX = (float) (((double) mSkewX * mTransY - (double) mScaleY * mTransX) / det);
+        inverse.mSkewY = (float) (-mSkewY / det);
+        inverse.mScaleY = (float) (mScaleX / det);
+        inverse.mTransY = (float) (((double) mSkewY * mTransX - (double) mScaleX * mTransY) / det);
+        return inverse;
+    }
+
+    /**
+     * Maps pointCount consecutive (x, y) pairs in place.  NaN coordinates stay NaN.
+     */
+    public void mapPoints(float[] pts, int offset, int pointCount) {
+        int end = offset + pointCount * 2;
+        for (int i = offset; i < end; i += 2) {
+            float x = pts[i];
+            float y = pts[i + 1];
+            pts[i] = mScaleX * x + mSkewX * y + mTransX;
+            pts[i + 1] = mSkewY * x + mScaleY * y + mTransY;
+        }
+    }
+
+    /**
+     * Maps boxes stored as (left, top, width, height) in place, every stride floats starting at
+     * offset.  Each result is the bounding box of the mapped corners, so rotated boxes stay valid.
+     */
+    public void mapBoxes(float[] boxes, int offset, int boxCount, int stride) {
+        for (int i = 0; i < boxCount; ++i) {
+            mapBox(boxes, offset + i * stride);
+        }
+    }
+
+    /**
+     * Maps a packed face result in place: faceCount records of stride floats, each holding a
+     * (left, top, width, height) box at boxOffset and landmarkCount (x, y) pairs at landmarkOffset.
+     */
+    public void mapFaces(float[] faces, int faceCount, int stride, int boxOffset,
+                         int landmarkOffset, int landmarkCount) {
+        for (int i = 0; i < faceCount; ++i) {
+            int base = i * stride;
+            mapBox(faces, base + boxOffset);
+            mapPoints(faces, base + landmarkOffset, landmarkCount);
+        }
+    }
+
+    private void mapBox(float[] boxes, int at) {
+        float left = boxes[at];
+        float top = boxes[at + 1];
+        float right = left + boxes[at + 2];
+        float bottom = top + boxes[at + 3];
+        // Under an affine transform the extremes lie at the corners.
+        float x0 = mScaleX * left + mSkewX * top + mTransX;
+        float x1 = mScaleX * right + mSkewX * top + mTransX;
+        float x2 = mScaleX * left + mSkewX * bottom + mTransX;
+        float x3 = mScaleX * right + mSkewX * bottom + mTransX;
+        float y0 = mSkewY * left + mScaleY * top + mTransY;
+        float y1 = mSkewY * right + mScaleY * top + mTransY;
+        float y2 = mSkewY * left + mScaleY * bottom + mTransY;
+        float y3 = mSkewY * right + mScaleY * bottom + mTransY;
+        float minX = Math.min(Math.min(x0, x1), Math.min(x2, x3));
+        float maxX = Math.max(Math.max(x0, x1), Math.max(x2, x3));
+        float minY = Math.min(Math.min(y0, y1), Math.min(y2, y3));
+        float maxY = Math.max(Math.max(y0, y1), Math.max(y2, y3));
+        boxes[at] = minX;
+        boxes[at + 1] = minY;
+        boxes[at + 2] = maxX - minX;
+        boxes[at + 3] = maxY - minY;
+    }
+}
@@ -0,0 +1,288 @@
+package com.smona.app.detect.facedetector.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.smona.app.detect.facedetector.detector.FaceResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extracts face thumbnails in process, in place of the external crop intent of
+ * {@link FaceUtil#cropPicture}.<p>
+ *
+ * Each image is opened once through a file descriptor with a {@link BitmapRegionDecoder}, which
+ * reads the regions from the file rather than copying the encoded image into memory, and only the
+ * face rectangles plus a margin are decoded, subsampled towards {@link #CROP_SIZE}, so the
+ * full-size bitmap is never decoded.  Images are processed in parallel and the crops are put into
+ * a bounded queue; workers block while the queue is full, so a slow consumer holds back decoding
+ * instead of piling up bitmaps.<p>
+ *
+ * Queued crops are reported to the {@link MemoryBudget}: they are dropped from
+ * {@link MemoryBudget#STAGE_EVICT_CACHES}, decoded at half the size from
+ * {@link MemoryBudget#STAGE_DOWNSAMPLE} and in the budget's preferred config.
+ */
+public class FaceCropExtractor implements MemoryBudget.Client {
+    private static final String TAG = "FaceCropExtractor";
+
+    public static final int CROP_SIZE = 320;
+    // Margin around the face box, as a fraction of the box size on each side.
+    private static final float MARGIN = 0.25f;
+
+    private final Context mContext;
+    private final MemoryBudget mBudget;
+    private final ExecutorService mExecutor;
+    private final BlockingQueue<FaceCrop> mOutput;
+    // Bytes of the crops decoded but not yet taken.
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+
+    public static final int ALL_FACES = -1;
+
+    /**
+     * Faces detected on a downsampled and rotated copy of an image.
+     */
+    public static class CropRequest {
+        final Uri uri;
+        final FaceResult faces;
+        final CoordinateTransform toDetected;
+        final int degree;
+
+        /**
+         * @param toDetected transform from the stored pixels to the bitmap the faces were detected
+         *                   on, e.g. {@link PathReader.DecodedImage#getTransform()}; it is copied
+         * @param degree     EXIF rotation that was applied to that bitmap
+         */
+        public CropRequest(Uri uri, FaceResult faces, CoordinateTransform toDetected, int degree) {
+            this.uri = uri;
+            this.faces = faces;
+            this.toDetected = new CoordinateTransform(toDetected);
+            this.degree = degree;
+        }
+    }
+
+    public static class FaceCrop {
+        private final Uri mUri;
+        private final int mFaceIndex;
+        private final Bitmap mBitmap;
+
+        FaceCrop(Uri uri, int faceIndex, Bitmap bitmap) {
+            mUri = uri;
+            mFaceIndex = faceIndex;
+            mBitmap = bitmap;
+        }
+
+        public Uri getUri() {
+            return mUri;
+        }
+
+        /**
+         * Index of the face in the FaceResult of the request.
+         */
+        public int getFaceIndex() {
+            return mFaceIndex;
+        }
+
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+    }
+
+    /**
+     * The extractor reads the budget's stage when a request is submitted; registering it with the
+     * budget is up to the caller.
+     */
+    public FaceCropExtractor(Context context, MemoryBudget budget, int queueCapacity) {
+        mContext = context.getApplicationContext();
+        mBudget = budget;
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, FaceUtil.getNumCores()));
+        mOutput = new ArrayBlockingQueue<FaceCrop>(queueCapacity);
+    }
+
+    public void submit(CropRequest request) {
+        submit(request, ALL_FACES);
+    }
+
+    /**
+     * Crops only the face with the given index in the request, or all faces for
+     * {@link #ALL_FACES}.
+     */
+    public void submit(final CropRequest request, final int face) {
+        boolean downsample = mBudget.getStage() >= MemoryBudget.STAGE_DOWNSAMPLE;
+        final int cropSize = downsample ? CROP_SIZE / 2 : CROP_SIZE;
+        final Bitmap.Config config = mBudget.getPreferredConfig();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    extract(request, face, cropSize, config);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to crop " + request.uri, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the next crop.
+     */
+    public FaceCrop take() throws InterruptedException {
+        return taken(mOutput.take());
+    }
+
+    /**
+     * Returns the next crop, or null if none arrives within the timeout.
+     */
+    public FaceCrop poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return taken(mOutput.poll(timeout, unit));
+    }
+
+    private FaceCrop taken(FaceCrop crop) {
+        if (crop != null) {
+            mQueuedBytes.addAndGet(-MemoryBudget.getByteCount(crop.getBitmap()));
+        }
+        return crop;
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    @Override
+    public void onTrim(int stage) {
+        if (stage >= MemoryBudget.STAGE_EVICT_CACHES) {
+            dropQueued();
+        }
+    }
+
+    public void release() {
+        mExecutor.shutdownNow();
+        dropQueued();
+    }
+
+    private void dropQueued() {
+        List<FaceCrop> dropped = new ArrayList<FaceCrop>();
+        mOutput.drainTo(dropped);
+        for (FaceCrop crop : dropped) {
+            taken(crop);
+        }
+    }
+
+    private void extract(CropRequest request, int face, int cropSize, Bitmap.Config config)
+            throws IOException, InterruptedException {
+        if (request.faces == null || face >= request.faces.getCount()) {
+            return;
+        }
+        int first = face == ALL_FACES ? 0 : face;
+        int end = face == ALL_FACES ? request.faces.getCount() : face + 1;
+        if (first >= end) {
+            return;
+        }
+        ParcelFileDescriptor pfd = mContext.getContentResolver().openFileDescriptor(request.uri,
+                "r");
+        if (pfd == null) {
+            return;
+        }
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = newDecoder(pfd, request.uri);
+        } catch (IOException e) {
+            pfd.close();
+            throw e;
+        }
+
+        try {
+            int rawWidth = decoder.getWidth();
+            int rawHeight = decoder.getHeight();
+            CoordinateTransform toRaw = request.toDetected.invert();
+            if (toRaw == null) {
+                return;
+            }
+
+            // The face boxes plus margin, mapped back to the stored pixels in one pass.
+            FaceResult faces = request.faces;
+            int count = end - first;
+            float[] boxes = new float[count * 4];
+            for (int i = 0; i < count; ++i) {
+                int f = first + i;
+                float marginX = faces.getWidth(f) * MARGIN;
+                float marginY = faces.getHeight(f) * MARGIN;
+                boxes[i * 4] = faces.getLeft(f) - marginX;
+                boxes[i * 4 + 1] = faces.getTop(f) - marginY;
+                boxes[i * 4 + 2] = faces.getWidth(f) + 2 * marginX;
+                boxes[i * 4 + 3] = faces.getHeight(f) + 2 * marginY;
+            }
+            toRaw.mapBoxes(boxes, 0, count, 4);
+
+            Rect region = new Rect();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = config;
+            for (int i = 0; i < count; ++i) {
+                region.set((int) boxes[i * 4], (int) boxes[i * 4 + 1],
+                        (int) (boxes[i * 4] + boxes[i * 4 + 2]),
+                        (int) (boxes[i * 4 + 1] + boxes[i * 4 + 3]));
+                if (!region.intersect(0, 0, rawWidth, rawHeight)) {
+                    continue;
+                }
+
+                options.inSampleSize = 1;
+                while (Math.min(region.width(), region.height()) / (options.inSampleSize * 2)
+                        >= cropSize) {
+                    options.inSampleSize *= 2;
+                }
+                Bitmap crop = decoder.decodeRegion(region, options);
+                if (crop == null) {
+                    continue;
+                }
+                if (request.degree != 0) {
+                    crop = FaceUtil.rotateImage(request.degree, crop);
+                }
+                mQueuedBytes.addAndGet(MemoryBudget.getByteCount(crop));
+                mOutput.put(new FaceCrop(request.uri, first + i, crop));
+            }
+        } finally {
+            decoder.recycle();
+            pfd.close();
+        }
+    }
+
+    /**
+     * Decodes from the file behind the descriptor.  Only descriptors that cannot seek, such as
+     * pipes from some providers, fall back to a stream, which the decoder copies into memory.
+     */
+    private BitmapRegionDecoder newDecoder(ParcelFileDescriptor pfd, Uri uri) throws IOException {
+        try {
+            return BitmapRegionDecoder.newInstance(pfd.getFileDescriptor(), false);
+        } catch (IOException e) {
+            if (pfd.getStatSize() >= 0) {
+                throw e;
+            }
+        }
+        InputStream is = mContext.getContentResolver().openInputStream(uri);
+        if (is == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        try {
+            return BitmapRegionDecoder.newInstance(is, false);
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -7,7 +7,7 @@ import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.Rect;
-import android.media.ExifInterface;
+import android.support.media.ExifInterface;
 import android.net.Uri;
 import android.os.Environment;
 import android.provider.MediaStore;
@@ -17,6 +17,7 @@ import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.regex.Pattern;
 
 public class FaceUtil {
@@ -79,26 +80,45 @@ public class FaceUtil {
 	 * @return degree 旋转角度
 	 */
 	public static int readPictureDegree(String path) {
-		int degree = 0;
 		try {
-			ExifInterface exifInterface = new ExifInterface(path);
-			int orientation = exifInterface.getAttributeInt(
-					ExifInterface.TAG_ORIENTATION,
-					ExifInterface.ORIENTATION_NORMAL);
-			switch (orientation) {
-			case ExifInterface.ORIENTATION_ROTATE_90:
-				degree = 90;
-				break;
-			case ExifInterface.ORIENTATION_ROTATE_180:
-				degree = 180;
-				break;
-			case ExifInterface.ORIENTATION_ROTATE_270:
-				degree = 270;
-				break;
-			}
+			return readPictureDegree(new ExifInterface(path));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		return 0;
+	}
+
+	/**
+	 * 从输入流读取图片属性：旋转的角度，流不会被关闭
+	 * 
+	 * @param is 图片数据流
+	 * @return degree 旋转角度
+	 */
+	public static int readPictureDegree(InputStream is) {
+		try {
+			return readPictureDegree(new ExifInterface(is));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return 0;
+	}
+
+	private static int readPictureDegree(ExifInterface exifInterface) {
+		int degree = 0;
+		int orientation = exifInterface.getAttributeInt(
+				ExifInterface.TAG_ORIENTATION,
+				ExifInterface.ORIENTATION_NORMAL);
+		switch (orientation) {
+		case ExifInterface.ORIENTATION_ROTATE_90:
+			degree = 90;
+			break;
+		case ExifInterface.ORIENTATION_ROTATE_180:
+			degree = 180;
+			break;
+		case ExifInterface.ORIENTATION_ROTATE_270:
+			degree = 270;
+			break;
+		}
 		return degree;
 	}
 	
@@ -133,7 +153,10 @@ public class FaceUtil {
 	 * 
 	 * @return
 	 * 旋转后的矩形
+	 *
+	 * @deprecated 使用 {@link CoordinateTransform#postRotateImage} 批量转换
 	 */
+	@Deprecated
 	static public Rect RotateDeg90(Rect r, int width, int height) {
 		int left = r.left;
 		r.left	= height- r.bottom;
@@ -156,7 +179,10 @@ public class FaceUtil {
 	 * 
 	 * @return
 	 * 旋转后的点 
+	 *
+	 * @deprecated 使用 {@link CoordinateTransform#postRotateImage} 批量转换
 	 */
+	@Deprecated
 	static public Point RotateDeg90(Point p, int width, int height) {
 		int x = p.x;
 		p.x = height - p.y;
@@ -0,0 +1,184 @@
+package com.smona.app.detect.facedetector.util;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Central budget for the bitmaps and direct buffers the app keeps alive.<p>
+ *
+ * Every owner of large memory registers a {@link Client} that reports what it retains.  When the
+ * total goes over the ceiling, or when the system reports memory pressure through
+ * {@link #onTrimMemory(int)}, the budget escalates through cumulative stages: first caches are
+ * evicted, then the displayed image is downsampled, and finally bitmaps switch to cheaper configs.
+ * Every event and every {@link #enforce()} applies the current stage again to whatever is loaded
+ * at that time, and at the top stage the ceiling is still enforced by downsampling further.<p>
+ *
+ * The stage also applies to later decodes through {@link #getPreferredConfig()}, until memory
+ * recovers: it steps down one stage whenever the retained memory is well below the ceiling, and
+ * back to normal when the app returns to the foreground after its UI was hidden.
+ */
+public class MemoryBudget implements ComponentCallbacks2 {
+    public static final int STAGE_NORMAL = 0;
+    public static final int STAGE_EVICT_CACHES = 1;
+    public static final int STAGE_DOWNSAMPLE = 2;
+    public static final int STAGE_CHEAP_CONFIG = 3;
+
+    // Share of the app heap the tracked memory may use by default.
+    private static final int DEFAULT_HEAP_DIVISOR = 4;
+    // Below this share of the ceiling the budget steps down one stage.
+    private static final float RECOVER_FRACTION = 0.5f;
+
+    /**
+     * Owner of tracked memory.
+     */
+    public interface Client {
+        /**
+         * Bytes of bitmaps and direct buffers currently held.
+         */
+        long getRetainedBytes();
+
+        /**
+         * Releases memory according to the given stage and all stages below it.  Called again for
+         * every event while the stage is in effect, so it must act on what is loaded now and do
+         * nothing for memory already released.  At {@link #STAGE_DOWNSAMPLE} and above, a client
+         * holding an already downsampled bitmap should downsample it again while
+         * {@link #isOverCeiling()}.
+         */
+        void onTrim(int stage);
+    }
+
+    private final List<Client> mClients = new ArrayList<Client>();
+    private long mCeiling;
+    private int mStage = STAGE_NORMAL;
+    private boolean mUiHidden;
+
+    public MemoryBudget(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mCeiling = (long) am.getMemoryClass() * 1024 * 1024 / DEFAULT_HEAP_DIVISOR;
+    }
+
+    public static long getByteCount(Bitmap bitmap) {
+        return bitmap == null || bitmap.isRecycled() ? 0 : bitmap.getByteCount();
+    }
+
+    public void register(Client client) {
+        mClients.add(client);
+    }
+
+    public void unregister(Client client) {
+        mClients.remove(client);
+    }
+
+    public long getCeiling() {
+        return mCeiling;
+    }
+
+    public void setCeiling(long bytes) {
+        mCeiling = bytes;
+        enforce();
+    }
+
+    public int getStage() {
+        return mStage;
+    }
+
+    public boolean isOverCeiling() {
+        return getRetainedBytes() > mCeiling;
+    }
+
+    public long getRetainedBytes() {
+        long total = 0;
+        for (Client client : mClients) {
+            total += client.getRetainedBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Config new bitmaps without alpha should be decoded with at the current stage.
+     */
+    public Bitmap.Config getPreferredConfig() {
+        return mStage >= STAGE_CHEAP_CONFIG ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Brings the tracked memory under the ceiling: the current stage is applied to what is loaded
+     * now and escalated stage by stage while still over; at the top stage clients keep
+     * downsampling until the memory fits or nothing more can be released.  If the memory is well
+     * below the ceiling instead, the stage steps down by one.  Call after a client took on a large
+     * allocation.
+     */
+    public void enforce() {
+        long retained = getRetainedBytes();
+        if (retained < mCeiling * RECOVER_FRACTION && mStage > STAGE_NORMAL) {
+            mStage--;
+        }
+        while (retained > mCeiling) {
+            if (mStage < STAGE_CHEAP_CONFIG) {
+                mStage++;
+            }
+            apply(mStage);
+            long after = getRetainedBytes();
+            if (after >= retained && mStage == STAGE_CHEAP_CONFIG) {
+                break;
+            }
+            retained = after;
+        }
+        Debug.d("MemoryBudget enforce retained=" + retained + ", ceiling=" + mCeiling
+                + ", stage=" + mStage);
+    }
+
+    /**
+     * Called when the app comes back to the foreground.  Pressure that was reported while the UI
+     * was hidden no longer applies, so later decodes go back to the normal stage.
+     */
+    public void onForeground() {
+        if (mUiHidden) {
+            mUiHidden = false;
+            mStage = STAGE_NORMAL;
+        }
+    }
+
+    private void raiseTo(int stage) {
+        mStage = Math.max(mStage, stage);
+        apply(mStage);
+    }
+
+    private void apply(int stage) {
+        for (Client client : new ArrayList<Client>(mClients)) {
+            client.onTrim(stage);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            mUiHidden = true;
+        }
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            raiseTo(STAGE_CHEAP_CONFIG);
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW) {
+            raiseTo(STAGE_DOWNSAMPLE);
+        } else {
+            // RUNNING_MODERATE, UI_HIDDEN and BACKGROUND
+            raiseTo(STAGE_EVICT_CACHES);
+        }
+        Debug.d("MemoryBudget onTrimMemory level=" + level + ", stage=" + mStage
+                + ", retained=" + getRetainedBytes());
+    }
+
+    @Override
+    public void onLowMemory() {
+        raiseTo(STAGE_CHEAP_CONFIG);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -4,9 +4,19 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 /**
  * Created by motianhu on 12/30/16.
@@ -14,6 +24,69 @@ import java.io.InputStream;
 
 public class PathReader {
 
+    /**
+     * A bitmap decoded by {@link #getImageFromUri}, with the size of the stored image and the EXIF
+     * rotation, so that coordinates on the bitmap can be mapped back to the stored pixels, and a
+     * version of the stored image taken from the descriptor it was decoded from.
+     */
+    public static class DecodedImage {
+        private final Bitmap mBitmap;
+        private final int mRawWidth;
+        private final int mRawHeight;
+        private final int mDegree;
+        private long mVersion = -1;
+
+        DecodedImage(Bitmap bitmap, int rawWidth, int rawHeight, int degree) {
+            mBitmap = bitmap;
+            mRawWidth = rawWidth;
+            mRawHeight = rawHeight;
+            mDegree = degree;
+        }
+
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+
+        /**
+         * Width of the stored image, before sampling and rotation.
+         */
+        public int getRawWidth() {
+            return mRawWidth;
+        }
+
+        public int getRawHeight() {
+            return mRawHeight;
+        }
+
+        /**
+         * EXIF rotation applied to the bitmap.
+         */
+        public int getDegree() {
+            return mDegree;
+        }
+
+        /**
+         * Value that changes when the stored image does, built from the size and, where fstat is
+         * available, the modification time of the file behind the descriptor.
+         *
+         * @return the version, or -1 if the descriptor is not a file, e.g. a pipe
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        /**
+         * Transform from the stored pixels to the bitmap.
+         */
+        public CoordinateTransform getTransform() {
+            boolean swapped = mDegree == 90 || mDegree == 270;
+            int decodedWidth = swapped ? mBitmap.getHeight() : mBitmap.getWidth();
+            int decodedHeight = swapped ? mBitmap.getWidth() : mBitmap.getHeight();
+            return CoordinateTransform.forDecodedImage(mRawWidth, mRawHeight, decodedWidth,
+                    decodedHeight, mDegree);
+        }
+    }
+
     public static Bitmap getImageFromAssetsFile(Context context, String fileName) {
         Bitmap image = null;
         AssetManager am = context.getResources().getAssets();
@@ -29,8 +102,184 @@ public class PathReader {
 
     }
 
+    /**
+     * Decodes an asset downsampled so that its longest edge is at most maxDimension, like
+     * {@link #getImageFromUri}.
+     *
+     * @param config preferred config of the decoded bitmap
+     */
+    public static Bitmap getImageFromAssetsFile(Context context, String fileName,
+                                                int maxDimension, Bitmap.Config config) {
+        AssetManager am = context.getResources().getAssets();
+        InputStream is = null;
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            is = am.open(fileName);
+            BitmapFactory.decodeStream(is, null, options);
+            is.close();
+
+            options.inSampleSize = getSampleSize(options, maxDimension);
+            options.inPreferredConfig = config;
+            options.inJustDecodeBounds = false;
+            is = am.open(fileName);
+            return BitmapFactory.decodeStream(is, null, options);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
     public static Bitmap getImageFromSdcard(Context context, String filePath) {
         Bitmap bitmap = BitmapFactory.decodeFile(filePath);
         return bitmap;
     }
+
+    /**
+     * Decodes an image from a file:// or content:// uri through a single descriptor, without
+     * looking up MediaStore.Images.Media.DATA.  The EXIF orientation, the bounds and the pixels are
+     * all read from the same descriptor, and the image is downsampled so that its longest edge is
+     * at most maxDimension and rotated upright.
+     *
+     * @param config preferred config of the decoded bitmap
+     * @return the decoded image, or null if the uri cannot be opened or decoded
+     */
+    public static DecodedImage getImageFromUri(Context context, Uri uri, int maxDimension,
+                                         Bitmap.Config config) {
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                return null;
+            }
+            FileDescriptor fd = pfd.getFileDescriptor();
+            FileChannel channel = new FileInputStream(fd).getChannel();
+            DecodedImage image;
+            if (isSeekable(channel)) {
+                image = decodeFromDescriptor(fd, channel, maxDimension, config);
+            } else {
+                // Pipes from some providers cannot be rewound, so read them once into memory.
+                image = decodeFromBytes(readFully(new FileInputStream(fd)), maxDimension, config);
+            }
+            if (image != null) {
+                image.mVersion = getVersion(pfd);
+            }
+            return image;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Version of the file behind the descriptor, so that picks need no query to the provider: the
+     * modification time in seconds in the high half and the size in the low half, or just the size
+     * before fstat is available.
+     */
+    private static long getVersion(ParcelFileDescriptor pfd) {
+        long size = pfd.getStatSize();
+        if (size < 0) {
+            return -1;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                long mtime = Os.fstat(pfd.getFileDescriptor()).st_mtime;
+                return (mtime << 32) ^ size;
+            } catch (ErrnoException e) {
+                // fall back to the size
+            }
+        }
+        return size;
+    }
+
+    private static boolean isSeekable(FileChannel channel) {
+        try {
+            channel.position(0);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static DecodedImage decodeFromDescriptor(FileDescriptor fd, FileChannel channel,
+                                                     int maxDimension, Bitmap.Config config)
+            throws IOException {
+        int degree = FaceUtil.readPictureDegree(new FileInputStream(fd));
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        channel.position(0);
+        BitmapFactory.decodeFileDescriptor(fd, null, options);
+
+        int rawWidth = options.outWidth;
+        int rawHeight = options.outHeight;
+        options.inSampleSize = getSampleSize(options, maxDimension);
+        options.inPreferredConfig = config;
+        options.inJustDecodeBounds = false;
+        channel.position(0);
+        Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fd, null, options);
+        return toDecodedImage(bitmap, rawWidth, rawHeight, degree);
+    }
+
+    private static DecodedImage decodeFromBytes(byte[] data, int maxDimension,
+                                                Bitmap.Config config) {
+        int degree = FaceUtil.readPictureDegree(new ByteArrayInputStream(data));
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        int rawWidth = options.outWidth;
+        int rawHeight = options.outHeight;
+        options.inSampleSize = getSampleSize(options, maxDimension);
+        options.inPreferredConfig = config;
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        return toDecodedImage(bitmap, rawWidth, rawHeight, degree);
+    }
+
+    // 适当压缩图片可以加快检测速度
+    private static int getSampleSize(BitmapFactory.Options options, float maxDimension) {
+        return Math.max(1, (int) Math.ceil(Math.max(
+                (double) options.outWidth / maxDimension,
+                (double) options.outHeight / maxDimension)));
+    }
+
+    // 部分手机会对图片做旋转，这里把图片旋转为正的方向
+    private static DecodedImage toDecodedImage(Bitmap bitmap, int rawWidth, int rawHeight,
+                                               int degree) {
+        if (bitmap == null) {
+            return null;
+        }
+        if (degree != 0) {
+            bitmap = FaceUtil.rotateImage(degree, bitmap);
+        }
+        return new DecodedImage(bitmap, rawWidth, rawHeight, degree);
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16 * 1024];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
 }
@@ -0,0 +1,113 @@
+package com.smona.app.detect.facedetector.view;
+
+import android.view.Choreographer;
+
+/**
+ * Advances the sprite frame of FaceView's animated decorations from Choreographer callbacks, so
+ * the animation is paced by vsync rather than by a timer.  Only when the sprite frame changes does
+ * it ask the view to invalidate the rects around the animated decorations.<p>
+ *
+ * Every callback is also counted for frame-time statistics: a vsync interval longer than one and a
+ * half frame budgets is a jank, and the time spent in FaceView.onDraw() is tracked alongside.  The
+ * summary is read through {@link FaceView#getAnimationStats()}.
+ */
+class DecorationAnimator implements Choreographer.FrameCallback {
+    private static final long SPRITE_FRAME_NANOS = 100 * 1000000L;
+    private static final long FRAME_BUDGET_NANOS = 1000000000L / 60;
+    private static final long JANK_NANOS = FRAME_BUDGET_NANOS * 3 / 2;
+
+    private final FaceView mView;
+    private boolean mRunning;
+    private long mStartNanos;
+    private long mLastFrameNanos;
+    private int mSpriteFrame;
+
+    private int mFrames;
+    private int mJanks;
+    private long mWorstIntervalNanos;
+    private long mDrawNanos;
+    private long mWorstDrawNanos;
+    private int mDraws;
+
+    DecorationAnimator(FaceView view) {
+        mView = view;
+    }
+
+    void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mStartNanos = 0;
+        mLastFrameNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    int getSpriteFrame() {
+        return mSpriteFrame;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        if (mStartNanos == 0) {
+            mStartNanos = frameTimeNanos;
+        } else {
+            recordInterval(frameTimeNanos - mLastFrameNanos);
+        }
+        mLastFrameNanos = frameTimeNanos;
+
+        int count = mView.getSpriteFrameCount();
+        if (count > 0) {
+            int frame = (int) (((frameTimeNanos - mStartNanos) / SPRITE_FRAME_NANOS) % count);
+            if (frame != mSpriteFrame) {
+                mSpriteFrame = frame;
+                mView.invalidateAnimatedDecorations();
+            }
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Called by the view with the duration of its last onDraw().
+     */
+    void recordDraw(long nanos) {
+        mDraws++;
+        mDrawNanos += nanos;
+        mWorstDrawNanos = Math.max(mWorstDrawNanos, nanos);
+    }
+
+    private void recordInterval(long intervalNanos) {
+        mFrames++;
+        if (intervalNanos > JANK_NANOS) {
+            mJanks++;
+        }
+        mWorstIntervalNanos = Math.max(mWorstIntervalNanos, intervalNanos);
+    }
+
+    int getFrameCount() {
+        return mFrames;
+    }
+
+    int getJankCount() {
+        return mJanks;
+    }
+
+    String getStats() {
+        return "frames=" + mFrames + ", janks=" + mJanks
+                + ", worstInterval=" + mWorstIntervalNanos / 1000000f + "ms"
+                + ", draws=" + mDraws
+                + ", avgDraw=" + (mDraws == 0 ? 0 : mDrawNanos / mDraws / 1000000f) + "ms"
+                + ", worstDraw=" + mWorstDrawNanos / 1000000f + "ms";
+    }
+}
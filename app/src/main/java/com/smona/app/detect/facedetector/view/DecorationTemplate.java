@@ -0,0 +1,56 @@
+package com.smona.app.detect.facedetector.view;
+
+import android.graphics.Bitmap;
+
+import com.google.android.gms.vision.face.Landmark;
+
+/**
+ * One set of decorations drawn by {@link FaceView} on every face: a header above the eyes, a
+ * bitmap on each cheek and an optional animated sprite at a landmark.  Any of them may be null to
+ * leave that decoration out.
+ */
+public class DecorationTemplate {
+
+    private final Bitmap mHeader;
+    private final Bitmap mLeftCheek;
+    private final Bitmap mRightCheek;
+    private final SpriteSheet mSprite;
+    private final int mSpriteLandmark;
+
+    public DecorationTemplate(Bitmap header, Bitmap leftCheek, Bitmap rightCheek) {
+        this(header, leftCheek, rightCheek, null, Landmark.NOSE_BASE);
+    }
+
+    /**
+     * @param sprite         animation frames, or null
+     * @param spriteLandmark {@link Landmark} type the sprite is centered on
+     */
+    public DecorationTemplate(Bitmap header, Bitmap leftCheek, Bitmap rightCheek,
+                              SpriteSheet sprite, int spriteLandmark) {
+        mHeader = header;
+        mLeftCheek = leftCheek;
+        mRightCheek = rightCheek;
+        mSprite = sprite;
+        mSpriteLandmark = spriteLandmark;
+    }
+
+    public Bitmap getHeader() {
+        return mHeader;
+    }
+
+    public Bitmap getLeftCheek() {
+        return mLeftCheek;
+    }
+
+    public Bitmap getRightCheek() {
+        return mRightCheek;
+    }
+
+    public SpriteSheet getSprite() {
+        return mSprite;
+    }
+
+    public int getSpriteLandmark() {
+        return mSpriteLandmark;
+    }
+}
@@ -0,0 +1,101 @@
+package com.smona.app.detect.facedetector.view;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the extents of {@link FaceRenderRecord}s, in image coordinates.  A query only
+ * touches the cells overlapping the requested region, so its cost follows the number of visible
+ * faces rather than the total number of faces in the photo.
+ */
+class FaceGrid {
+
+    private static final int MAX_CELLS_PER_AXIS = 16;
+
+    private final FaceRenderRecord[] mRecords;
+    private final int mCols;
+    private final int mRows;
+    private final float mCellWidth;
+    private final float mCellHeight;
+    private final int[][] mCells;
+
+    // A face spanning several cells is reported once per query.
+    private final int[] mStamps;
+    private int mStamp;
+
+    FaceGrid(FaceRenderRecord[] records, int imageWidth, int imageHeight) {
+        mRecords = records;
+        int perAxis = (int) Math.ceil(Math.sqrt(records.length));
+        mCols = Math.max(1, Math.min(MAX_CELLS_PER_AXIS, perAxis));
+        mRows = mCols;
+        mCellWidth = Math.max(1f, (float) imageWidth / mCols);
+        mCellHeight = Math.max(1f, (float) imageHeight / mRows);
+        mStamps = new int[records.length];
+
+        int[] counts = new int[mCols * mRows];
+        for (FaceRenderRecord record : records) {
+            for (int row = row(record.extentTop); row <= row(record.extentBottom); ++row) {
+                for (int col = col(record.extentLeft); col <= col(record.extentRight); ++col) {
+                    counts[row * mCols + col]++;
+                }
+            }
+        }
+        mCells = new int[counts.length][];
+        for (int i = 0; i < counts.length; ++i) {
+            mCells[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 0; i < records.length; ++i) {
+            FaceRenderRecord record = records[i];
+            for (int row = row(record.extentTop); row <= row(record.extentBottom); ++row) {
+                for (int col = col(record.extentLeft); col <= col(record.extentRight); ++col) {
+                    int cell = row * mCols + col;
+                    mCells[cell][counts[cell]++] = i;
+                }
+            }
+        }
+    }
+
+    int size() {
+        return mRecords.length;
+    }
+
+    /**
+     * Collects the indices of all records whose extent intersects the given region.
+     *
+     * @param out receives the indices, must hold at least {@link #size()} entries
+     * @return the number of indices written to out, in ascending order so that overlapping
+     * faces keep their drawing order
+     */
+    int query(float left, float top, float right, float bottom, int[] out) {
+        if (++mStamp == 0) {
+            Arrays.fill(mStamps, 0);
+            mStamp = 1;
+        }
+        int count = 0;
+        for (int row = row(top); row <= row(bottom); ++row) {
+            for (int col = col(left); col <= col(right); ++col) {
+                for (int index : mCells[row * mCols + col]) {
+                    if (mStamps[index] == mStamp) {
+                        continue;
+                    }
+                    mStamps[index] = mStamp;
+                    FaceRenderRecord record = mRecords[index];
+                    if (record.extentRight >= left && record.extentLeft <= right
+                            && record.extentBottom >= top && record.extentTop <= bottom) {
+                        out[count++] = index;
+                    }
+                }
+            }
+        }
+        Arrays.sort(out, 0, count);
+        return count;
+    }
+
+    private int col(float x) {
+        return Math.max(0, Math.min(mCols - 1, (int) (x / mCellWidth)));
+    }
+
+    private int row(float y) {
+        return Math.max(0, Math.min(mRows - 1, (int) (y / mCellHeight)));
+    }
+}
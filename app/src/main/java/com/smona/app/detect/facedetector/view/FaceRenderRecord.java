@@ -0,0 +1,67 @@
+package com.smona.app.detect.facedetector.view;
+
+import android.graphics.Rect;
+
+import com.smona.app.detect.facedetector.detector.FaceResult;
+
+/**
+ * Render state of one detected face, kept in image coordinates so that it does not depend on the
+ * current view scale.
+ */
+class FaceRenderRecord {
+
+    final float left;
+    final float top;
+    final float right;
+    final float bottom;
+
+    /**
+     * Size of the face relative to the template the decorations were designed for, in image
+     * pixels.  The cheek decorations apply it on top of the view scale.
+     */
+    final double widthFactor;
+    final double heightFactor;
+
+    /**
+     * Face box grown by the reach of the largest decoration, used by the spatial index.
+     */
+    float extentLeft;
+    float extentTop;
+    float extentRight;
+    float extentBottom;
+
+    /**
+     * View-space bounds of the animated decoration, valid when hasSprite is set.
+     */
+    final Rect spriteBounds = new Rect();
+    boolean hasSprite;
+
+    FaceRenderRecord(FaceResult faces, int face, int standardWidth, int standardHeight) {
+        left = faces.getLeft(face);
+        top = faces.getTop(face);
+        right = left + faces.getWidth(face);
+        bottom = top + faces.getHeight(face);
+        widthFactor = faces.getWidth(face) * 1.0 / standardWidth;
+        heightFactor = faces.getHeight(face) * 1.0 / standardHeight;
+        setDecorationReach(0, 1.0);
+    }
+
+    /**
+     * Grows the extent by a cheek decoration of the given bitmap size drawn at the given view scale.
+     */
+    void setDecorationReach(int decorationSize, double scale) {
+        float reach = (float) (decorationSize * widthFactor * scale);
+        extentLeft = left - reach;
+        extentTop = top - reach;
+        extentRight = right + reach;
+        extentBottom = bottom + reach;
+    }
+
+    float getWidth() {
+        return right - left;
+    }
+
+    float getHeight() {
+        return bottom - top;
+    }
+}
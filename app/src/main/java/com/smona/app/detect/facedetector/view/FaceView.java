@@ -22,12 +22,13 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.util.AttributeSet;
-import android.util.SparseArray;
+import android.view.MotionEvent;
 import android.view.View;
 
-import com.smona.app.detect.facedetector.util.Debug;
+import com.smona.app.detect.facedetector.detector.FaceResult;
+import com.smona.app.detect.facedetector.util.CoordinateTransform;
+import com.smona.app.detect.facedetector.util.MemoryBudget;
 
-import com.google.android.gms.vision.face.Face;
 import com.google.android.gms.vision.face.Landmark;
 
 /**
@@ -36,8 +37,23 @@ import com.google.android.gms.vision.face.Landmark;
  */
 public class FaceView extends View {
 
+    /**
+     * Interface definition for a callback invoked when a detected face is tapped.
+     */
+    public interface OnFaceClickListener {
+        /**
+         * @param face index of the face in the result given to {@link #setContent}
+         */
+        void onFaceClick(int face);
+    }
+
     private Bitmap mSourceBitmap;
-    private SparseArray<Face> mFaces;
+    // Separate layer under this view that draws the source bitmap, or null to draw it here.
+    private SourceImageView mSourceView;
+    private FaceResult mFaces;
+    // Size of the image the faces were detected on; the source bitmap may be downsampled later.
+    private int mContentWidth;
+    private int mContentHeight;
 
     private Bitmap mHeaderBitmap;
     private Bitmap mLeftBitmap;
@@ -45,32 +61,380 @@ public class FaceView extends View {
 
     private static final int STANDAND_WIDTH = 738;
     private static final int STANDAND_HEIGHT = 923;
-    private double mStandandWidthFactor = 1.0f;
-    private double mStandandHeightFactor = 1.0f;
+
+    // The header is drawn at a fixed size above the eye, in view pixels.
+    private static final int HEADER_SIZE = 200;
+    private static final int HEADER_OFFSET = 100;
+    // Faces smaller than this on screen are not worth decorating.
+    private static final int MIN_VISIBLE_FACE_SIZE = 8;
+
+    private FaceRenderRecord[] mRecords;
+    private FaceGrid mFaceGrid;
+    // View scale the grid extents were computed for; 0 when the grid needs rebuilding.
+    private double mGridScale;
+    private int[] mVisibleFaces;
+
+    // Boxes and landmarks of all faces in the packed FaceResult layout, mapped from image to view
+    // coordinates in one pass whenever the scale changes.
+    private float[] mViewFaceData;
+    private final CoordinateTransform mImageToView = new CoordinateTransform();
+    private CoordinateTransform mViewToImage;
+    private final float[] mHitPoint = new float[2];
+
+    private final Paint mPaint = new Paint();
+    private final Rect mBitmapBounds = new Rect();
+    private final Rect mClipBounds = new Rect();
+    private final Rect mDecorateBounds = new Rect();
+    private final Rect mDirtyBounds = new Rect();
+
+    // Side of the animated decoration box, relative to the face width.
+    private static final float SPRITE_FACE_RATIO = 0.3f;
+
+    private SpriteSheet mSpriteSheet;
+    private int mSpriteLandmark;
+    private final DecorationAnimator mAnimator;
+    private boolean mAttached;
+    private final Rect mSpriteBounds = new Rect();
+
+    private OnFaceClickListener mFaceClickListener;
+    // Face under the pointer when it went down, or -1.
+    private int mPressedFace = -1;
 
     public FaceView(Context context, AttributeSet attrs) {
         super(context, attrs);
+        mPaint.setColor(Color.GREEN);
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeWidth(5);
+        mAnimator = new DecorationAnimator(this);
     }
 
     /**
      * Sets the bitmap background and the associated face detections.
      */
-    public void setContent(Bitmap bitmap, SparseArray<Face> faces) {
+    public void setContent(Bitmap bitmap, FaceResult faces) {
         mSourceBitmap = bitmap;
         mFaces = faces;
+        if (bitmap != null) {
+            mContentWidth = bitmap.getWidth();
+            mContentHeight = bitmap.getHeight();
+        }
+        updateSourceView();
+        buildRenderRecords();
+        invalidate();
+    }
+
+    /**
+     * Replaces the background with a resampled copy of the same image, e.g. under memory pressure.
+     * Face coordinates keep referring to the size of the bitmap given to {@link #setContent}.
+     */
+    public void setSourceBitmap(Bitmap bitmap) {
+        mSourceBitmap = bitmap;
+        if (mSourceView != null) {
+            updateSourceView();
+        } else {
+            invalidate();
+        }
+    }
+
+    /**
+     * Draws the source bitmap in the given view, which must lie under this one with the same
+     * bounds, so that this view only draws the face overlay.
+     */
+    public void setSourceView(SourceImageView view) {
+        mSourceView = view;
+        updateSourceView();
+        invalidate();
+    }
+
+    private void updateSourceView() {
+        if (mSourceView != null) {
+            mSourceView.setBitmap(mSourceBitmap, mContentWidth, mContentHeight);
+        }
+    }
+
+    public void setOnFaceClickListener(OnFaceClickListener listener) {
+        mFaceClickListener = listener;
+    }
+
+    /**
+     * Bytes held by the decoration bitmaps.
+     */
+    public long getDecorationBytes() {
+        return MemoryBudget.getByteCount(mHeaderBitmap) + MemoryBudget.getByteCount(mLeftBitmap)
+                + MemoryBudget.getByteCount(mRightBitmap)
+                + (mSpriteSheet == null ? 0 : MemoryBudget.getByteCount(mSpriteSheet.getBitmap()));
+    }
+
+    /**
+     * Sets an animated decoration drawn at the given landmark type of every face, or removes it
+     * when sheet is null.  The frames advance with the display refresh while the view is attached.
+     */
+    public void setAnimatedDecoration(SpriteSheet sheet, int landmarkType) {
+        mSpriteSheet = sheet;
+        mSpriteLandmark = landmarkType;
+        mGridScale = 0;
+        updateAnimator();
         invalidate();
     }
 
+    /**
+     * Frame-time and jank statistics of the decoration animation.
+     */
+    public String getAnimationStats() {
+        return mAnimator.getStats();
+    }
+
+    int getSpriteFrameCount() {
+        return mSpriteSheet == null ? 0 : mSpriteSheet.getFrameCount();
+    }
+
+    /**
+     * Invalidates only the rects around the animated decorations of faces on screen.
+     */
+    void invalidateAnimatedDecorations() {
+        if (mRecords == null || mGridScale == 0) {
+            return;
+        }
+        for (FaceRenderRecord record : mRecords) {
+            if (record.hasSprite
+                    && record.spriteBounds.intersects(0, 0, getWidth(), getHeight())) {
+                invalidate(record.spriteBounds);
+            }
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        updateAnimator();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mAttached = false;
+        updateAnimator();
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateAnimator();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateAnimator();
+    }
+
+    /**
+     * Runs the animation only while its frames can be seen: attached, in a visible window (the
+     * window is hidden while the activity is stopped) and with the view and its parents shown.
+     */
+    private void updateAnimator() {
+        if (mAnimator == null) {
+            // Visibility callbacks may arrive from the View constructor.
+            return;
+        }
+        if (mAttached && getWindowVisibility() == VISIBLE && isShown()
+                && mSpriteSheet != null && mRecords != null && mRecords.length > 0) {
+            mAnimator.start();
+        } else {
+            mAnimator.stop();
+        }
+    }
+
+    /**
+     * Switches all decorations to the given template while keeping the current image and faces.
+     * Only the placements of the decorations are recomputed, and only the rects covered by the old
+     * and new decorations of faces on screen are invalidated.
+     */
+    public void setDecorationTemplate(DecorationTemplate template) {
+        boolean laidOut = mRecords != null && mGridScale != 0;
+        double scale = mGridScale;
+        if (laidOut) {
+            invalidateDecorations(scale);
+        }
+        int oldReach = Math.max(bitmapSize(mLeftBitmap), bitmapSize(mRightBitmap));
+        mHeaderBitmap = template.getHeader();
+        mLeftBitmap = template.getLeftCheek();
+        mRightBitmap = template.getRightCheek();
+        mSpriteSheet = template.getSprite();
+        mSpriteLandmark = template.getSpriteLandmark();
+        updateAnimator();
+        if (!laidOut) {
+            mGridScale = 0;
+            invalidate();
+            return;
+        }
+        int reach = Math.max(bitmapSize(mLeftBitmap), bitmapSize(mRightBitmap));
+        updateDecorationPlacements(scale, reach != oldReach);
+        invalidateDecorations(scale);
+    }
+
     public void setHeaderBitmap(Bitmap bitmap) {
         mHeaderBitmap = bitmap;
     }
 
     public void setLeftBitmap(Bitmap bitmap) {
         mLeftBitmap = bitmap;
+        mGridScale = 0;
     }
 
     public void setRightBitmap(Bitmap bitmap) {
         mRightBitmap = bitmap;
+        mGridScale = 0;
+    }
+
+    private void buildRenderRecords() {
+        mFaceGrid = null;
+        mGridScale = 0;
+        if (mSourceBitmap == null || mFaces == null) {
+            mRecords = null;
+            return;
+        }
+        mRecords = new FaceRenderRecord[mFaces.getCount()];
+        for (int i = 0; i < mRecords.length; ++i) {
+            mRecords[i] = new FaceRenderRecord(mFaces, i, STANDAND_WIDTH, STANDAND_HEIGHT);
+        }
+        mViewFaceData = new float[mRecords.length * FaceResult.STRIDE];
+        mVisibleFaces = new int[mRecords.length];
+        updateAnimator();
+    }
+
+    /**
+     * The cheek decorations scale with the face and with the view, and may reach outside the face
+     * box, so the spatial index covers each face grown by the largest of them at this scale.
+     */
+    private void buildFaceGrid(double scale) {
+        mImageToView.reset().postScale((float) scale, (float) scale);
+        mViewToImage = mImageToView.invert();
+        mFaces.copyTo(mViewFaceData, 0);
+        mImageToView.mapFaces(mViewFaceData, mRecords.length, FaceResult.STRIDE,
+                FaceResult.BOX_LEFT, FaceResult.LANDMARKS, FaceResult.LANDMARK_SLOTS);
+        updateDecorationPlacements(scale, true);
+        mGridScale = scale;
+    }
+
+    /**
+     * Recomputes the decoration extents and sprite boxes from the view-space face data, and the
+     * spatial index when the extents changed.
+     */
+    private void updateDecorationPlacements(double scale, boolean rebuildGrid) {
+        int reach = Math.max(bitmapSize(mLeftBitmap), bitmapSize(mRightBitmap));
+        for (int i = 0; i < mRecords.length; ++i) {
+            mRecords[i].setDecorationReach(reach, scale);
+            updateSpriteBounds(i, scale);
+        }
+        if (rebuildGrid) {
+            mFaceGrid = new FaceGrid(mRecords, mContentWidth, mContentHeight);
+        }
+    }
+
+    /**
+     * Invalidates the view rects of all decorations currently placed on visible faces.
+     */
+    private void invalidateDecorations(double scale) {
+        for (int face = 0; face < mRecords.length; ++face) {
+            FaceRenderRecord record = mRecords[face];
+            if (Math.max(record.getWidth(), record.getHeight()) * scale < MIN_VISIBLE_FACE_SIZE) {
+                continue;
+            }
+            int base = face * FaceResult.STRIDE + FaceResult.LANDMARKS;
+            for (int type = 0; type < FaceResult.LANDMARK_SLOTS; ++type) {
+                int at = base + type * 2;
+                if (Float.isNaN(mViewFaceData[at])) {
+                    continue;
+                }
+                if (layoutDecoration(type, record, scale, (int) mViewFaceData[at],
+                        (int) mViewFaceData[at + 1], mDirtyBounds) != null) {
+                    invalidateDirty();
+                }
+            }
+            if (record.hasSprite) {
+                mDirtyBounds.set(record.spriteBounds);
+                invalidateDirty();
+            }
+        }
+    }
+
+    private void invalidateDirty() {
+        // Grow by the stroke so the outline drawn around the header is covered as well.
+        int stroke = (int) Math.ceil(mPaint.getStrokeWidth());
+        mDirtyBounds.inset(-stroke, -stroke);
+        if (mDirtyBounds.intersect(0, 0, getWidth(), getHeight())) {
+            invalidate(mDirtyBounds);
+        }
+    }
+
+    private void updateSpriteBounds(int face, double scale) {
+        FaceRenderRecord record = mRecords[face];
+        record.hasSprite = false;
+        int at = face * FaceResult.STRIDE + FaceResult.LANDMARKS + mSpriteLandmark * 2;
+        if (mSpriteSheet == null || Float.isNaN(mViewFaceData[at])
+                || Math.max(record.getWidth(), record.getHeight()) * scale < MIN_VISIBLE_FACE_SIZE) {
+            return;
+        }
+        int x = (int) mViewFaceData[at];
+        int y = (int) mViewFaceData[at + 1];
+        int half = (int) (record.getWidth() * scale * SPRITE_FACE_RATIO / 2);
+        record.spriteBounds.set(x - half, y - half, x + half, y + half);
+        record.hasSprite = true;
+    }
+
+    /**
+     * Returns the index, in the order of the faces given to {@link #setContent}, of the topmost
+     * face whose box contains the given view coordinates, or -1.
+     */
+    public int getFaceIndexAt(float x, float y) {
+        if (mFaceGrid == null || mViewToImage == null) {
+            return -1;
+        }
+        mHitPoint[0] = x;
+        mHitPoint[1] = y;
+        mViewToImage.mapPoints(mHitPoint, 0, 1);
+        float ix = mHitPoint[0];
+        float iy = mHitPoint[1];
+        int count = mFaceGrid.query(ix, iy, ix, iy, mVisibleFaces);
+        // Later faces are drawn on top, so search from the end.
+        for (int i = count - 1; i >= 0; --i) {
+            FaceRenderRecord record = mRecords[mVisibleFaces[i]];
+            if (ix >= record.left && ix < record.right && iy >= record.top && iy < record.bottom) {
+                return mVisibleFaces[i];
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (mFaceClickListener == null) {
+            return super.onTouchEvent(event);
+        }
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                mPressedFace = getFaceIndexAt(event.getX(), event.getY());
+                // Touches outside the faces are left to the views below.
+                return mPressedFace >= 0;
+            case MotionEvent.ACTION_UP:
+                int face = getFaceIndexAt(event.getX(), event.getY());
+                if (face >= 0 && face == mPressedFace) {
+                    mFaceClickListener.onFaceClick(face);
+                }
+                mPressedFace = -1;
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                mPressedFace = -1;
+                return true;
+            default:
+                return mPressedFace >= 0;
+        }
+    }
+
+    private static int bitmapSize(Bitmap bitmap) {
+        return bitmap == null ? 0 : Math.max(bitmap.getWidth(), bitmap.getHeight());
     }
 
     /**
@@ -79,28 +443,35 @@ public class FaceView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if ((mSourceBitmap != null) && (mFaces != null)) {
+        long start = System.nanoTime();
+        if ((mSourceBitmap != null) && (mRecords != null)) {
             double scale = drawBitmap(canvas);
+            if (scale != mGridScale) {
+                buildFaceGrid(scale);
+            }
             drawFaceAnnotations(canvas, scale);
         }
+        mAnimator.recordDraw(System.nanoTime() - start);
     }
 
     /**
-     * Draws the bitmap background, scaled to the device size.  Returns the scale for future use in
-     * positioning the facial landmark graphics.
+     * Draws the bitmap background, scaled to the device size, unless a source view draws it.
+     * Returns the scale for future use in positioning the facial landmark graphics.
      */
     private double drawBitmap(Canvas canvas) {
         double viewWidth = canvas.getWidth();
         double viewHeight = canvas.getHeight();
-        double imageWidth = mSourceBitmap.getWidth();
-        double imageHeight = mSourceBitmap.getHeight();
+        double imageWidth = mContentWidth;
+        double imageHeight = mContentHeight;
         double scaleW = viewWidth / imageWidth;
         double scaleH = viewHeight / imageHeight;
         double scale = Math.min(scaleW, scaleH);
+        if (mSourceView != null) {
+            return scale;
+        }
 
-        Rect destBounds = new Rect(0, 0, (int) (imageWidth * scale), (int) (imageHeight * scale));
-        Debug.d("drawBitmap =" + destBounds + "; view=" + viewWidth + "," + viewHeight + ", image=" + imageWidth + "," + imageHeight + ", scale: " + scale);
-        canvas.drawBitmap(mSourceBitmap, null, destBounds, null);
+        mBitmapBounds.set(0, 0, (int) (imageWidth * scale), (int) (imageHeight * scale));
+        canvas.drawBitmap(mSourceBitmap, null, mBitmapBounds, null);
         return scale;
     }
 
@@ -111,83 +482,118 @@ public class FaceView extends View {
      * Note that eye landmarks are defined to be the midpoint between the detected eye corner
      * positions, which tends to place the eye landmarks at the lower eyelid rather than at the
      * pupil position.
+     * <p>
+     * Only faces whose extent intersects the clip region and which are large enough to see are
+     * drawn; the candidates come from the spatial index instead of a walk over every face.
      */
     private void drawFaceAnnotations(Canvas canvas, double scale) {
-        Paint paint = new Paint();
-        paint.setColor(Color.GREEN);
-        paint.setStyle(Paint.Style.STROKE);
-        paint.setStrokeWidth(5);
-
-        for (int i = 0; i < mFaces.size(); ++i) {
-            Face face = mFaces.valueAt(i);
-            drawBox(canvas, scale, face);
-            for (Landmark landmark : face.getLandmarks()) {
-                drawDecorate(canvas, scale, landmark);
-                drawLanmark(canvas, scale, paint, landmark);
+        if (!canvas.getClipBounds(mClipBounds)) {
+            return;
+        }
+        // The header sits above the face at a fixed view size, so widen the query by its reach.
+        float headerReach = (float) ((HEADER_SIZE + HEADER_OFFSET) / scale);
+        int count = mFaceGrid.query(
+                (float) (mClipBounds.left / scale) - headerReach,
+                (float) (mClipBounds.top / scale) - headerReach,
+                (float) (mClipBounds.right / scale) + headerReach,
+                (float) (mClipBounds.bottom / scale) + headerReach,
+                mVisibleFaces);
+
+        for (int i = 0; i < count; ++i) {
+            int face = mVisibleFaces[i];
+            FaceRenderRecord record = mRecords[face];
+            if (Math.max(record.getWidth(), record.getHeight()) * scale < MIN_VISIBLE_FACE_SIZE) {
+                continue;
+            }
+            int base = face * FaceResult.STRIDE;
+            drawBox(canvas, record, base);
+            for (int type = 0; type < FaceResult.LANDMARK_SLOTS; ++type) {
+                int at = base + FaceResult.LANDMARKS + type * 2;
+                if (Float.isNaN(mViewFaceData[at])) {
+                    continue;
+                }
+                int x = (int) mViewFaceData[at];
+                int y = (int) mViewFaceData[at + 1];
+                drawDecorate(canvas, scale, record, type, x, y);
+                drawLanmark(canvas, mPaint, x, y);
             }
+            drawSprite(canvas, record);
         }
     }
 
-    private void drawLanmark(Canvas canvas, double scale, Paint paint, Landmark landmark) {
-        int cx = (int) (landmark.getPosition().x * scale);
-        int cy = (int) (landmark.getPosition().y * scale);
+    private void drawLanmark(Canvas canvas, Paint paint, int cx, int cy) {
+        if (!mClipBounds.intersects(cx - 15, cy - 15, cx + 15, cy + 15)) {
+            return;
+        }
         canvas.drawCircle(cx, cy, 10, paint);
     }
 
-    private void drawDecorate(Canvas canvas, double scale, Landmark landmark) {
-        //Debug.d( "landmark.getType()=" + landmark.getType());
-        if (landmark.getType() == Landmark.LEFT_CHEEK) {
-            int x = (int) (landmark.getPosition().x * scale);
-            int y = (int) (landmark.getPosition().y * scale);
-            int w = (int) (mLeftBitmap.getWidth() * scale * mStandandWidthFactor);
-            int h = (int) (mLeftBitmap.getHeight() * scale * mStandandWidthFactor);
-            Rect destBounds = new Rect(x - w / 3, y - h / 2, x + w * 2 / 3, y + h / 2);
-            Debug.d("drawDecorate cheek-left bw,bh=" + mLeftBitmap.getWidth() + "," + mLeftBitmap.getHeight() + ", w,h=" + w + "," + h);
-            canvas.drawBitmap(mLeftBitmap, null, destBounds, null);
-        } else if (landmark.getType() == Landmark.RIGHT_CHEEK) {
-            int x = (int) (landmark.getPosition().x * scale);
-            int y = (int) (landmark.getPosition().y * scale);
-            int w = (int) (mRightBitmap.getWidth() * scale * mStandandWidthFactor);
-            int h = (int) (mRightBitmap.getHeight() * scale * mStandandWidthFactor);
-            Rect destBounds = new Rect(x - w * 2 / 3, y - h / 2, x + w / 3, y + h / 2);
-            Debug.d("drawDecorate cheek-right bw,bh=" + mRightBitmap.getWidth() + "," + mRightBitmap.getHeight() + ", w,h=" + w + "," + h);
-            canvas.drawBitmap(mRightBitmap, null, destBounds, null);
-        } else if (landmark.getType() == Landmark.LEFT_EYE) {
-            int x = (int) (landmark.getPosition().x * scale);
-            int y = (int) (landmark.getPosition().y * scale);
-            int w = 200;
-            int h = 200;
-            Rect destBounds = new Rect(x - w / 2, y - 100 - h, x + w / 2, y - 100);
-            Debug.d("drawDecorate eye-left bw,bh=" + mHeaderBitmap.getWidth() + "," + mHeaderBitmap.getHeight() + ", w,h=" + w + "," + h);
-            canvas.drawBitmap(mHeaderBitmap, null, destBounds, null);
-
-            Paint paint = new Paint();
-            paint.setColor(Color.GREEN);
-            paint.setStyle(Paint.Style.STROKE);
-            paint.setStrokeWidth(5);
-            canvas.drawRect(destBounds, paint);
-        }
-    }
-
-    private void drawBox(Canvas canvas, double scale, Face face) {
-        Paint paint = new Paint();
-        paint.setColor(Color.GREEN);
-        paint.setStyle(Paint.Style.STROKE);
-        paint.setStrokeWidth(5);
+    private void drawDecorate(Canvas canvas, double scale, FaceRenderRecord record, int type,
+                              int x, int y) {
+        //Debug.d( "landmark.getType()=" + type);
+        Bitmap bitmap = layoutDecoration(type, record, scale, x, y, mDecorateBounds);
+        if (bitmap == null || !Rect.intersects(mDecorateBounds, mClipBounds)) {
+            return;
+        }
+        canvas.drawBitmap(bitmap, null, mDecorateBounds, null);
+        if (type == Landmark.LEFT_EYE) {
+            canvas.drawRect(mDecorateBounds, mPaint);
+        }
+    }
 
-        // Draws a bounding box around the face.
-        float x = (float) (face.getPosition().x * scale);
-        float y = (float) (face.getPosition().y * scale);
-        float xOffset = (float) (face.getWidth() * scale);
-        float yOffset = (float) (face.getHeight() * scale);
+    /**
+     * Computes the view bounds of the decoration drawn at a landmark of the given type into out,
+     * and returns its bitmap, or null if the type has no decoration in the current template.
+     */
+    private Bitmap layoutDecoration(int type, FaceRenderRecord record, double scale, int x, int y,
+                                    Rect out) {
+        if (type == Landmark.LEFT_CHEEK && mLeftBitmap != null) {
+            double factor = record.widthFactor * scale;
+            int w = (int) (mLeftBitmap.getWidth() * scale * factor);
+            int h = (int) (mLeftBitmap.getHeight() * scale * factor);
+            out.set(x - w / 3, y - h / 2, x + w * 2 / 3, y + h / 2);
+            return mLeftBitmap;
+        } else if (type == Landmark.RIGHT_CHEEK && mRightBitmap != null) {
+            double factor = record.widthFactor * scale;
+            int w = (int) (mRightBitmap.getWidth() * scale * factor);
+            int h = (int) (mRightBitmap.getHeight() * scale * factor);
+            out.set(x - w * 2 / 3, y - h / 2, x + w / 3, y + h / 2);
+            return mRightBitmap;
+        } else if (type == Landmark.LEFT_EYE && mHeaderBitmap != null) {
+            int w = HEADER_SIZE;
+            int h = HEADER_SIZE;
+            out.set(x - w / 2, y - HEADER_OFFSET - h, x + w / 2, y - HEADER_OFFSET);
+            return mHeaderBitmap;
+        }
+        return null;
+    }
 
-        mStandandWidthFactor = xOffset * 1.0 / STANDAND_WIDTH;
-        mStandandHeightFactor = yOffset * 1.0 / STANDAND_HEIGHT;
+    /**
+     * Draws the current sprite frame fitted into the face's sprite box, keeping its aspect ratio.
+     */
+    private void drawSprite(Canvas canvas, FaceRenderRecord record) {
+        if (!record.hasSprite || !Rect.intersects(record.spriteBounds, mClipBounds)) {
+            return;
+        }
+        Rect frame = mSpriteSheet.getFrame(mAnimator.getSpriteFrame() % mSpriteSheet.getFrameCount());
+        Rect box = record.spriteBounds;
+        float fit = Math.min((float) box.width() / frame.width(), (float) box.height() / frame.height());
+        int w = (int) (frame.width() * fit);
+        int h = (int) (frame.height() * fit);
+        mSpriteBounds.set(box.centerX() - w / 2, box.centerY() - h / 2,
+                box.centerX() + w / 2, box.centerY() + h / 2);
+        canvas.drawBitmap(mSpriteSheet.getBitmap(), frame, mSpriteBounds, null);
+    }
 
-        Debug.d("drawBox x,y=" + xOffset + ", " + yOffset + ", mStandandWidthFactor=" + mStandandWidthFactor + ", mStandandHeightFactor=" + mStandandHeightFactor);
+    private void drawBox(Canvas canvas, FaceRenderRecord record, int base) {
+        // Draws a bounding box around the face.
+        float x = mViewFaceData[base + FaceResult.BOX_LEFT];
+        float y = mViewFaceData[base + FaceResult.BOX_TOP];
+        float xOffset = mViewFaceData[base + FaceResult.BOX_WIDTH];
+        float yOffset = mViewFaceData[base + FaceResult.BOX_HEIGHT];
 
         float right = x + xOffset;
         float bottom = y + yOffset;
-        canvas.drawRect(x, y, right, bottom, paint);
+        canvas.drawRect(x, y, right, bottom, mPaint);
     }
 }
@@ -0,0 +1,64 @@
+package com.smona.app.detect.facedetector.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Source image layer placed under a {@link FaceView}, drawn scaled to fit and aligned to the top
+ * left corner like the face coordinates.<p>
+ *
+ * The image lives in its own view because with hardware acceleration invalidate(Rect) ignores the
+ * rect and the whole onDraw() of the invalidated view is recorded again.  Kept apart, the overlay
+ * can be invalidated for every template swap or sprite frame without drawing the image again; this
+ * view is only redrawn when the bitmap or its size changes.
+ */
+public class SourceImageView extends View {
+
+    private Bitmap mBitmap;
+    private int mContentWidth;
+    private int mContentHeight;
+    private final Rect mBounds = new Rect();
+
+    public SourceImageView(Context context) {
+        super(context);
+    }
+
+    public SourceImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    /**
+     * @param contentWidth  width the image is laid out at, which the bitmap may be a resampled
+     *                      copy of
+     * @param contentHeight height the image is laid out at
+     */
+    void setBitmap(Bitmap bitmap, int contentWidth, int contentHeight) {
+        mBitmap = bitmap;
+        mContentWidth = contentWidth;
+        mContentHeight = contentHeight;
+        invalidate();
+    }
+
+    /**
+     * Scale at which content of the given size fits a view of the given size.
+     */
+    private static double getScale(int viewWidth, int viewHeight, int contentWidth,
+                                   int contentHeight) {
+        return Math.min((double) viewWidth / contentWidth, (double) viewHeight / contentHeight);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mBitmap == null || mContentWidth == 0 || mContentHeight == 0) {
+            return;
+        }
+        double scale = getScale(getWidth(), getHeight(), mContentWidth, mContentHeight);
+        mBounds.set(0, 0, (int) (mContentWidth * scale), (int) (mContentHeight * scale));
+        canvas.drawBitmap(mBitmap, null, mBounds, null);
+    }
+}
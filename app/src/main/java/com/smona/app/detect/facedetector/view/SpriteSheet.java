@@ -0,0 +1,68 @@
+package com.smona.app.detect.facedetector.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+/**
+ * Animation frames packed side by side into one pre-decoded bitmap, so that drawing a frame is a
+ * single drawBitmap() with a source rect and no per-frame decoding.  Frames may differ in size.
+ */
+public class SpriteSheet {
+
+    private final Bitmap mSheet;
+    private final Rect[] mFrames;
+
+    private SpriteSheet(Bitmap sheet, Rect[] frames) {
+        mSheet = sheet;
+        mFrames = frames;
+    }
+
+    /**
+     * Packs the frames, in order, into a new sheet.  Null frames are skipped.
+     */
+    public static SpriteSheet pack(Bitmap[] frames) {
+        int width = 0;
+        int height = 0;
+        int count = 0;
+        for (Bitmap frame : frames) {
+            if (frame == null) {
+                continue;
+            }
+            width += frame.getWidth();
+            height = Math.max(height, frame.getHeight());
+            count++;
+        }
+
+        Bitmap sheet = Bitmap.createBitmap(Math.max(1, width), Math.max(1, height),
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(sheet);
+        Rect[] rects = new Rect[count];
+        int x = 0;
+        int index = 0;
+        for (Bitmap frame : frames) {
+            if (frame == null) {
+                continue;
+            }
+            canvas.drawBitmap(frame, x, 0, null);
+            rects[index++] = new Rect(x, 0, x + frame.getWidth(), frame.getHeight());
+            x += frame.getWidth();
+        }
+        return new SpriteSheet(sheet, rects);
+    }
+
+    public Bitmap getBitmap() {
+        return mSheet;
+    }
+
+    public int getFrameCount() {
+        return mFrames.length;
+    }
+
+    /**
+     * Source rect of the frame within {@link #getBitmap()}.
+     */
+    public Rect getFrame(int index) {
+        return mFrames[index];
+    }
+}
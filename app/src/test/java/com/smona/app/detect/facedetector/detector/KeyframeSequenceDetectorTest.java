@@ -0,0 +1,192 @@
+package com.smona.app.detect.facedetector.detector;
+
+import com.google.android.gms.vision.Frame;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a synthetic face moving at a fixed speed through {@link KeyframeSequenceDetector}.
+ */
+public class KeyframeSequenceDetectorTest {
+
+    private static final float FACE_SIZE = 100;
+    private static final int LANDMARKS = 4;
+    private static final float EPSILON = 1e-4f;
+
+    /**
+     * A single face whose box moves right by speed pixels every frame and jumps once, with a few
+     * landmarks fixed to the box and the other slots empty.
+     */
+    private static class MovingFace implements KeyframeSequenceDetector.FrameDetector {
+        private final float mSpeed;
+        private final int mJumpFrame;
+        private final float mJump;
+        private int mFrame;
+
+        MovingFace(float speed) {
+            this(speed, Integer.MAX_VALUE, 0);
+        }
+
+        MovingFace(float speed, int jumpFrame, float jump) {
+            mSpeed = speed;
+            mJumpFrame = jumpFrame;
+            mJump = jump;
+        }
+
+        /**
+         * Left edge of the box in the given frame.
+         */
+        float leftAt(int frame) {
+            return 50 + mSpeed * frame + (frame >= mJumpFrame ? mJump : 0);
+        }
+
+        void advance() {
+            mFrame++;
+        }
+
+        @Override
+        public FaceResult detect(Frame frame) {
+            float[] data = new float[FaceResult.STRIDE];
+            Arrays.fill(data, Float.NaN);
+            float left = leftAt(mFrame);
+            data[FaceResult.BOX_LEFT] = left;
+            data[FaceResult.BOX_TOP] = 80;
+            data[FaceResult.BOX_WIDTH] = FACE_SIZE;
+            data[FaceResult.BOX_HEIGHT] = FACE_SIZE;
+            data[FaceResult.EULER_Y] = 0;
+            data[FaceResult.EULER_Z] = 0;
+            for (int type = 0; type < LANDMARKS; ++type) {
+                data[FaceResult.LANDMARKS + type * 2] = left + 20 + type * 15;
+                data[FaceResult.LANDMARKS + type * 2 + 1] = 120 + type * 10;
+            }
+            return new FaceResult(data, new int[]{7}, 1);
+        }
+    }
+
+    private static TrackedFaces[] replay(KeyframeSequenceDetector detector, MovingFace face,
+                                         int frames) {
+        TrackedFaces[] results = new TrackedFaces[frames];
+        for (int i = 0; i < frames; ++i) {
+            results[i] = detector.process(null);
+            face.advance();
+        }
+        return results;
+    }
+
+    @Test
+    public void stillFaceSpreadsKeyframesToMaxInterval() {
+        MovingFace face = new MovingFace(0);
+        KeyframeSequenceDetector detector = new KeyframeSequenceDetector(face);
+        TrackedFaces[] results = replay(detector, face, 36);
+
+        // The interval starts at 2 and grows by one at each still keyframe.
+        int[] keyframes = {0, 2, 5, 9, 14, 20, 27, 35};
+        for (int i = 0, k = 0; i < results.length; ++i) {
+            boolean keyframe = k < keyframes.length && keyframes[k] == i;
+            assertEquals("frame " + i, keyframe, results[i].isKeyframe());
+            if (keyframe) {
+                k++;
+            }
+            assertEquals(1, results[i].getCount());
+            assertEquals(7, results[i].getId(0));
+            assertEquals(face.leftAt(0), results[i].getLeft(0), EPSILON);
+        }
+        assertEquals(KeyframeSequenceDetector.MAX_INTERVAL, detector.getInterval());
+        assertEquals(keyframes.length, detector.getKeyframeCount());
+        assertEquals(36, detector.getFrameCount());
+        assertEquals(1f - keyframes.length / 36f, detector.getSavedFraction(), EPSILON);
+    }
+
+    @Test
+    public void fastFaceDetectsEveryFrame() {
+        // 10% of the face width per frame is above the high motion threshold.
+        MovingFace face = new MovingFace(0.1f * FACE_SIZE);
+        KeyframeSequenceDetector detector = new KeyframeSequenceDetector(face);
+        TrackedFaces[] results = replay(detector, face, 10);
+
+        assertFalse(results[1].isKeyframe());
+        for (int i = 2; i < results.length; ++i) {
+            assertTrue("frame " + i, results[i].isKeyframe());
+            assertEquals(face.leftAt(i), results[i].getLeft(0), EPSILON);
+        }
+        assertEquals(KeyframeSequenceDetector.MIN_INTERVAL, detector.getInterval());
+        assertEquals(9, detector.getKeyframeCount());
+    }
+
+    @Test
+    public void predictedFramesFollowMeasuredVelocity() {
+        MovingFace face = new MovingFace(1);
+        KeyframeSequenceDetector detector = new KeyframeSequenceDetector(face);
+        detector.setMeasureError(true);
+        TrackedFaces[] results = replay(detector, face, 12);
+
+        // Keyframes at 0, 2, 5 and 9; the velocity is known from frame 2 on.
+        assertTrue(results[2].isKeyframe());
+        assertFalse(results[3].isKeyframe());
+        assertFalse(results[4].isKeyframe());
+        assertTrue(results[5].isKeyframe());
+        assertTrue(results[9].isKeyframe());
+        for (int i = 3; i < results.length; ++i) {
+            assertEquals("frame " + i, face.leftAt(i), results[i].getLeft(0), EPSILON);
+            assertEquals(face.leftAt(i) + 20, results[i].getLandmarkX(0, 0), EPSILON);
+            assertFalse(results[i].hasLandmark(0, LANDMARKS));
+        }
+        assertEquals(5, detector.getInterval());
+
+        // Only frame 1 (predicted still) and keyframe 2 (predicted from frame 0) are off, by one
+        // and two pixels; the other 9 compared frames are exact.
+        float expectedMean = LANDMARKS * (0.01f + 0.02f) / (LANDMARKS * 11f);
+        assertEquals(expectedMean, detector.getMeanError(), EPSILON);
+        assertEquals(0.02f, detector.getMaxError(), EPSILON);
+        assertEquals(0, detector.getMissedFaces());
+    }
+
+    @Test
+    public void predictionErrorHalvesInterval() {
+        // Slow enough for the interval to reach 4 after keyframe 5, then a jump of a fifth of the
+        // face width at frame 7 that the prediction for keyframe 9 misses.
+        MovingFace face = new MovingFace(1, 7, 0.2f * FACE_SIZE);
+        KeyframeSequenceDetector detector = new KeyframeSequenceDetector(face);
+        TrackedFaces[] results = replay(detector, face, 10);
+
+        assertFalse(results[7].isKeyframe());
+        assertEquals(face.leftAt(6), results[7].getLeft(0) - 1, EPSILON);
+        assertTrue(results[9].isKeyframe());
+        assertEquals(2, detector.getInterval());
+
+        // Without setMeasureError only keyframes 2, 5 and 9 are compared: two pixels off, exact
+        // and twenty pixels off.
+        assertEquals(0.2f, detector.getMaxError(), EPSILON);
+        assertEquals((0.02f + 0.2f) / 3, detector.getMeanError(), EPSILON);
+        assertEquals(0, detector.getMissedFaces());
+    }
+
+    @Test
+    public void subMillisecondKeyframesAddUp() {
+        // Every frame is a keyframe and spends at least 0.3ms in the detector.
+        final MovingFace face = new MovingFace(0.1f * FACE_SIZE);
+        KeyframeSequenceDetector detector = new KeyframeSequenceDetector(
+                new KeyframeSequenceDetector.FrameDetector() {
+                    @Override
+                    public FaceResult detect(Frame frame) {
+                        long end = System.nanoTime() + 300000;
+                        while (System.nanoTime() < end) {
+                            // busy wait below the millisecond resolution of the result
+                        }
+                        return face.detect(frame);
+                    }
+                });
+        for (int i = 0; i < 20; ++i) {
+            detector.process(null);
+            face.advance();
+        }
+        assertEquals(19, detector.getKeyframeCount());
+        assertTrue(detector.getDetectorTimeMs() >= 19 * 3 / 10);
+    }
+}
@@ -0,0 +1,140 @@
+package com.smona.app.detect.facedetector.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CoordinateTransformTest {
+
+    private static final float WIDTH = 100;
+    private static final float HEIGHT = 200;
+    private static final float EPSILON = 1e-4f;
+
+    // Corners of a WIDTH x HEIGHT image: top left, top right, bottom left, bottom right.
+    private static float[] corners() {
+        return new float[]{0, 0, WIDTH, 0, 0, HEIGHT, WIDTH, HEIGHT};
+    }
+
+    private static float[] map(CoordinateTransform transform, float... points) {
+        float[] mapped = points.clone();
+        transform.mapPoints(mapped, 0, mapped.length / 2);
+        return mapped;
+    }
+
+    @Test
+    public void rotate90MovesTopLeftToTopRight() {
+        CoordinateTransform transform = new CoordinateTransform()
+                .postRotateImage(90, WIDTH, HEIGHT);
+        assertArrayEquals(new float[]{HEIGHT, 0, HEIGHT, WIDTH, 0, 0, 0, WIDTH},
+                map(transform, corners()), EPSILON);
+    }
+
+    @Test
+    public void rotate180MovesTopLeftToBottomRight() {
+        CoordinateTransform transform = new CoordinateTransform()
+                .postRotateImage(180, WIDTH, HEIGHT);
+        assertArrayEquals(new float[]{WIDTH, HEIGHT, 0, HEIGHT, WIDTH, 0, 0, 0},
+                map(transform, corners()), EPSILON);
+    }
+
+    @Test
+    public void rotate270MovesTopLeftToBottomLeft() {
+        CoordinateTransform transform = new CoordinateTransform()
+                .postRotateImage(270, WIDTH, HEIGHT);
+        assertArrayEquals(new float[]{0, WIDTH, 0, 0, HEIGHT, WIDTH, HEIGHT, 0},
+                map(transform, corners()), EPSILON);
+    }
+
+    @Test
+    public void rotationDegreesAreNormalized() {
+        float[] expected = map(new CoordinateTransform().postRotateImage(270, WIDTH, HEIGHT),
+                corners());
+        assertArrayEquals(expected,
+                map(new CoordinateTransform().postRotateImage(-90, WIDTH, HEIGHT), corners()),
+                EPSILON);
+        assertArrayEquals(corners(),
+                map(new CoordinateTransform().postRotateImage(360, WIDTH, HEIGHT), corners()),
+                EPSILON);
+    }
+
+    @Test
+    public void fourQuarterTurnsAreIdentity() {
+        CoordinateTransform transform = new CoordinateTransform();
+        for (int i = 0; i < 4; ++i) {
+            // The image size swaps with every quarter turn.
+            boolean swapped = i % 2 == 1;
+            transform.postRotateImage(90, swapped ? HEIGHT : WIDTH, swapped ? WIDTH : HEIGHT);
+        }
+        assertArrayEquals(corners(), map(transform, corners()), EPSILON);
+    }
+
+    @Test
+    public void rotatedBoxIsBoundingBoxOfCorners() {
+        float[] box = {10, 20, 30, 40};
+        new CoordinateTransform().postRotateImage(90, WIDTH, HEIGHT).mapBoxes(box, 0, 1, 4);
+        // x' = HEIGHT - y over [20, 60], y' = x over [10, 40]
+        assertArrayEquals(new float[]{140, 10, 40, 30}, box, EPSILON);
+    }
+
+    @Test
+    public void invertUndoesRotation() {
+        for (int degree = 0; degree < 360; degree += 90) {
+            CoordinateTransform transform = new CoordinateTransform()
+                    .postScale(0.5f, 0.5f)
+                    .postRotateImage(degree, WIDTH * 0.5f, HEIGHT * 0.5f)
+                    .postTranslate(7, -3);
+            CoordinateTransform inverse = transform.invert();
+            assertNotNull(inverse);
+            float[] points = {12, 34, 0, 0, WIDTH, HEIGHT};
+            float[] mapped = map(transform, points);
+            assertArrayEquals("degree " + degree, points, map(inverse, mapped), EPSILON);
+        }
+    }
+
+    @Test
+    public void invertOfSingularTransformIsNull() {
+        assertNull(new CoordinateTransform().postScale(0, 1).invert());
+    }
+
+    @Test
+    public void invertLeavesOriginalUnchanged() {
+        CoordinateTransform transform = new CoordinateTransform().postScale(2, 4);
+        transform.invert();
+        assertArrayEquals(new float[]{2, 4}, map(transform, 1, 1), EPSILON);
+    }
+
+    @Test
+    public void postConcatAppendsSteps() {
+        CoordinateTransform first = new CoordinateTransform().postRotateImage(90, WIDTH, HEIGHT);
+        CoordinateTransform second = new CoordinateTransform().postScale(2, 3).postTranslate(1, 1);
+        CoordinateTransform chained = new CoordinateTransform(first).postConcat(second);
+        float[] expected = map(second, map(first, corners()));
+        assertArrayEquals(expected, map(chained, corners()), EPSILON);
+    }
+
+    @Test
+    public void decodedImageMapsStoredPixelsToUprightBitmap() {
+        // A 4000x3000 image decoded at a quarter size and rotated by 90 degrees.
+        CoordinateTransform transform =
+                CoordinateTransform.forDecodedImage(4000, 3000, 1000, 750, 90);
+        assertArrayEquals(new float[]{750, 0, 750, 1000, 0, 1000},
+                map(transform, 0, 0, 4000, 0, 4000, 3000), EPSILON);
+
+        CoordinateTransform toRaw = transform.invert();
+        assertNotNull(toRaw);
+        assertArrayEquals(new float[]{4000, 3000}, map(toRaw, 0, 1000), EPSILON);
+    }
+
+    @Test
+    public void mapFacesKeepsMissingLandmarks() {
+        // One face: box, then two landmarks of which the second is missing.
+        float[] face = {10, 20, 30, 40, 15, 25, Float.NaN, Float.NaN};
+        new CoordinateTransform().postScale(2, 2).mapFaces(face, 1, face.length, 0, 4, 2);
+        assertArrayEquals(new float[]{20, 40, 60, 80, 30, 50}, new float[]{
+                face[0], face[1], face[2], face[3], face[4], face[5]}, EPSILON);
+        assertTrue(Float.isNaN(face[6]) && Float.isNaN(face[7]));
+    }
+}